@@ -0,0 +1,189 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Area-level evidence accumulator: combines the detections of every frame taken in one area into
+ * per-class running sums and a confidence-weighted vote, instead of a plain union of labels.
+ *
+ * A class is accepted when it is seen in at least {@link #MIN_FRAME_HITS} frames with a mean confidence
+ * above the detection threshold, or once with a very high confidence. One noisy frame therefore cannot
+ * add an item on its own, while a clear single view still counts.
+ *
+ * Frames are added from the vision workers as they finish; all methods are synchronized.
+ * Free of Android and model dependencies, so the offline replay (vision_bench) aggregates areas with the same code.
+ */
+public class AreaEvidence {
+
+    /**
+     * One detection as the accumulator sees it; implemented by {@code RobotVisionProcessor.DetectionResult}
+     * on the robot and by the replay's detections offline.
+     */
+    public interface Detection {
+        String getLabel();
+
+        int getClassId();
+
+        float getConfidence();
+
+        /** Normalized box area in [0, 1]. */
+        float getBoxArea();
+    }
+
+    /** Frames in which a class must appear to be accepted on votes. */
+    static final int MIN_FRAME_HITS = 2;
+    /** A single detection at or above this confidence is accepted on its own. */
+    static final float STRONG_CONFIDENCE = 0.85f;
+
+    /**
+     * Running sums for one class. The per-frame value of a class is its best detection in that frame.
+     */
+    public static class ClassEvidence {
+        public final String label;
+        public final int classId;
+        /** Frames in which the class was detected. */
+        public int frameHits;
+        /** Total detections (several instances in one frame count separately). */
+        public int detections;
+        /** Sum of the per-frame best confidences: the confidence-weighted vote. */
+        public float vote;
+        public float maxConfidence;
+        /** Sum of the normalized box areas of the per-frame best detections. */
+        public float sumBoxArea;
+        /** Index of the frame with the best detection (see {@link #addFrame}). */
+        public int bestFrameIndex = -1;
+
+        ClassEvidence(String label, int classId) {
+            this.label = label;
+            this.classId = classId;
+        }
+
+        public float meanConfidence() {
+            return frameHits == 0 ? 0.0f : vote / frameHits;
+        }
+
+        public float meanBoxArea() {
+            return frameHits == 0 ? 0.0f : sumBoxArea / frameHits;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (hits: %d, det: %d, mean: %.2f, max: %.2f, area: %.3f)",
+                    label, frameHits, detections, meanConfidence(), maxConfidence, meanBoxArea());
+        }
+    }
+
+    private final String areaName;
+    private final float acceptConfidence;
+    private final Map<String, ClassEvidence> byLabel = new HashMap<>();
+    private int framesObserved;
+
+    /**
+     * @param acceptConfidence Minimum mean confidence for a class accepted on votes, normally the detection threshold.
+     */
+    public AreaEvidence(String areaName, float acceptConfidence) {
+        this.areaName = areaName;
+        this.acceptConfidence = acceptConfidence;
+    }
+
+    public String getAreaName() {
+        return areaName;
+    }
+
+    /**
+     * Adds the detections of one processed frame. Call once per frame, also for frames without detections.
+     * Every detection counts: the processor only returns detections at or above its confidence threshold.
+     *
+     * @param frameIndex Caller's index of the frame (e.g. the waypoint index), recorded as the best view.
+     */
+    public synchronized void addFrame(int frameIndex, List<? extends Detection> detections) {
+        framesObserved++;
+        Map<String, Detection> bestInFrame = new HashMap<>();
+        for (Detection d : detections) {
+            ClassEvidence evidence = evidenceFor(d.getLabel(), d.getClassId());
+            evidence.detections++;
+            Detection best = bestInFrame.get(d.getLabel());
+            if (best == null || d.getConfidence() > best.getConfidence()) {
+                bestInFrame.put(d.getLabel(), d);
+            }
+        }
+        for (Detection d : bestInFrame.values()) {
+            ClassEvidence evidence = byLabel.get(d.getLabel());
+            evidence.frameHits++;
+            evidence.vote += d.getConfidence();
+            evidence.sumBoxArea += d.getBoxArea();
+            if (d.getConfidence() > evidence.maxConfidence) {
+                evidence.maxConfidence = d.getConfidence();
+                evidence.bestFrameIndex = frameIndex;
+            }
+        }
+    }
+
+    private ClassEvidence evidenceFor(String label, int classId) {
+        ClassEvidence evidence = byLabel.get(label);
+        if (evidence == null) {
+            evidence = new ClassEvidence(label, classId);
+            byLabel.put(label, evidence);
+        }
+        return evidence;
+    }
+
+    public synchronized int getFramesObserved() {
+        return framesObserved;
+    }
+
+    /**
+     * Fraction of the observed frames in which the class was seen, in [0, 1].
+     */
+    public synchronized float stability(ClassEvidence evidence) {
+        return framesObserved == 0 ? 0.0f : (float) evidence.frameHits / framesObserved;
+    }
+
+    public synchronized boolean isAccepted(ClassEvidence evidence) {
+        return evidence.maxConfidence >= STRONG_CONFIDENCE
+                || (evidence.frameHits >= MIN_FRAME_HITS && evidence.meanConfidence() >= acceptConfidence);
+    }
+
+    /**
+     * @return Snapshot of all classes seen, ranked by vote (ties by max confidence). Entries are copies.
+     */
+    public synchronized List<ClassEvidence> ranked() {
+        List<ClassEvidence> result = new ArrayList<>(byLabel.size());
+        for (ClassEvidence evidence : byLabel.values()) {
+            ClassEvidence copy = new ClassEvidence(evidence.label, evidence.classId);
+            copy.frameHits = evidence.frameHits;
+            copy.detections = evidence.detections;
+            copy.vote = evidence.vote;
+            copy.maxConfidence = evidence.maxConfidence;
+            copy.sumBoxArea = evidence.sumBoxArea;
+            copy.bestFrameIndex = evidence.bestFrameIndex;
+            result.add(copy);
+        }
+        Collections.sort(result, new Comparator<ClassEvidence>() {
+            @Override
+            public int compare(ClassEvidence a, ClassEvidence b) {
+                int byVote = Float.compare(b.vote, a.vote);
+                return byVote != 0 ? byVote : Float.compare(b.maxConfidence, a.maxConfidence);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return Accepted labels, ranked by vote.
+     */
+    public synchronized List<String> acceptedLabels() {
+        List<String> labels = new ArrayList<>();
+        for (ClassEvidence evidence : ranked()) {
+            if (isAccepted(evidence)) {
+                labels.add(evidence.label);
+            }
+        }
+        return labels;
+    }
+}
@@ -0,0 +1,204 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background image persistence: Bitmaps are queued and written by a dedicated thread,
+ * so api.saveBitmapImage never runs on the mission or vision threads.
+ * The writer thread is the only caller of the sink. This matters for api.saveBitmapImage: it counts the saved files
+ * and then writes without a lock, so concurrent callers could exceed the API's image limit. It touches no other
+ * API state, so calling it off the mission thread is safe. The mission thread calls {@link #flush} before
+ * reportRoundingCompletion.
+ *
+ * The writer takes ownership of every submitted Bitmap and, after writing (or dropping) it, returns it to the
+ * {@link BitmapPool} if one is given, otherwise recycles it.
+ */
+public class AsyncImageWriter {
+
+    private static final String TAG = "AsyncImageWriter";
+
+    public enum OverflowPolicy {
+        /** Block the submitting thread until the queue has room (backpressure). */
+        BLOCK,
+        /** Drop (and recycle) the oldest queued image to make room. */
+        DROP_OLDEST
+    }
+
+    /**
+     * Destination of the images, e.g. api.saveBitmapImage.
+     */
+    public interface Sink {
+        void save(Bitmap bitmap, String name);
+    }
+
+    private static class Entry {
+        final Bitmap bitmap;
+        final String name;
+
+        Entry(Bitmap bitmap, String name) {
+            this.bitmap = bitmap;
+            this.name = name;
+        }
+    }
+
+    private final Sink sink;
+    private final BitmapPool pool;
+    private final OverflowPolicy policy;
+    private final BlockingQueue<Entry> queue;
+    private final Thread writerThread;
+    private final Object pendingLock = new Object();
+    private int pending;
+    private int dropped;
+    private volatile boolean running = true;
+
+    public AsyncImageWriter(Sink sink, int capacity, OverflowPolicy policy) {
+        this(sink, capacity, policy, null);
+    }
+
+    /**
+     * @param pool Pool that written Bitmaps are returned to, or null to recycle them.
+     */
+    public AsyncImageWriter(Sink sink, int capacity, OverflowPolicy policy, BitmapPool pool) {
+        this.sink = sink;
+        this.pool = pool;
+        this.policy = policy;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, TAG);
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queues a Bitmap for writing. The writer takes ownership: callers must not use or recycle it afterwards.
+     */
+    public void submit(Bitmap bitmap, String name) {
+        if (bitmap == null) {
+            return;
+        }
+        if (!running) {
+            Log.w(TAG, "Writer is shut down, dropping image: " + name);
+            dispose(bitmap);
+            return;
+        }
+        Entry entry = new Entry(bitmap, name);
+        synchronized (pendingLock) {
+            pending++;
+        }
+        try {
+            if (policy == OverflowPolicy.BLOCK) {
+                queue.put(entry);
+                return;
+            }
+            while (!queue.offer(entry)) {
+                Entry oldest = queue.poll();
+                if (oldest != null) {
+                    Log.w(TAG, "Write queue full, dropping oldest image: " + oldest.name);
+                    dispose(oldest.bitmap);
+                    synchronized (pendingLock) {
+                        dropped++;
+                    }
+                    completeOne();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.w(TAG, "Interrupted while queueing image: " + name);
+            dispose(bitmap);
+            completeOne();
+        }
+    }
+
+    /**
+     * Blocks until every image submitted so far has been written or dropped.
+     *
+     * @return true if the queue drained before the timeout.
+     */
+    public boolean flush(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (pendingLock) {
+            while (pending > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    Log.w(TAG, "Flush timed out with " + pending + " images still pending.");
+                    return false;
+                }
+                try {
+                    pendingLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public int getDroppedCount() {
+        synchronized (pendingLock) {
+            return dropped;
+        }
+    }
+
+    /**
+     * Stops the writer thread. Images still queued are disposed of without being written; call {@link #flush} first.
+     */
+    public void shutdown() {
+        running = false;
+        writerThread.interrupt();
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            dispose(entry.bitmap);
+            completeOne();
+        }
+    }
+
+    private void writeLoop() {
+        while (running) {
+            Entry entry;
+            try {
+                entry = queue.poll(500, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (entry == null) {
+                continue;
+            }
+            try {
+                sink.save(entry.bitmap, entry.name);
+                Log.d(TAG, "Saved image: " + entry.name);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to save image " + entry.name + ": " + e.getMessage(), e);
+            } finally {
+                dispose(entry.bitmap);
+                completeOne();
+            }
+        }
+    }
+
+    private void dispose(Bitmap bitmap) {
+        if (pool != null) {
+            pool.release(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+    }
+
+    private void completeOne() {
+        synchronized (pendingLock) {
+            pending--;
+            if (pending <= 0) {
+                pendingLock.notifyAll();
+            }
+        }
+    }
+}
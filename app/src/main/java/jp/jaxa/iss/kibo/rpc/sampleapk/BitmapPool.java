@@ -0,0 +1,122 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pool of mutable Bitmaps keyed by width, height and config, so the per-frame calibrated Bitmaps reuse the
+ * buffers of earlier frames instead of allocating ~5 MB each time.
+ *
+ * Buffers are borrowed with {@link #acquire} and handed back with {@link #release}; whoever ends up owning a
+ * Bitmap (e.g. {@link AsyncImageWriter} after saving) releases it. Released Bitmaps from outside the pool
+ * (camera frames) are accepted too if they are mutable. Only sizes that have been acquired are kept: a Bitmap of
+ * any other size (e.g. a panel crop) would never be reused and would only evict the frames. The pool holds at
+ * most {@code maxPooledBytes}; beyond that the least recently released Bitmaps are recycled.
+ *
+ * Used from the mission, vision and writer threads; all methods are synchronized.
+ */
+public class BitmapPool {
+
+    private static final String TAG = "BitmapPool";
+
+    private final long maxPooledBytes;
+    private final Map<String, ArrayDeque<Bitmap>> freeByKey = new HashMap<>();
+    // Keys ever passed to acquire; released Bitmaps of other sizes are recycled
+    private final Set<String> acquiredKeys = new HashSet<>();
+    // All pooled Bitmaps, least recently released first, for eviction
+    private final ArrayDeque<Bitmap> releaseOrder = new ArrayDeque<>();
+    private long pooledBytes;
+    private int hits;
+    private int misses;
+    private int evictions;
+
+    public BitmapPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * @return A mutable Bitmap of the given size and config with undefined content; callers overwrite every pixel.
+     */
+    public synchronized Bitmap acquire(int width, int height, Bitmap.Config config) {
+        if (config == null) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+        String key = key(width, height, config);
+        acquiredKeys.add(key);
+        ArrayDeque<Bitmap> free = freeByKey.get(key);
+        if (free != null && !free.isEmpty()) {
+            // Most recently released first: its pages are the most likely to still be resident
+            Bitmap bitmap = free.pollLast();
+            releaseOrder.removeFirstOccurrence(bitmap);
+            pooledBytes -= bitmap.getAllocationByteCount();
+            hits++;
+            return bitmap;
+        }
+        misses++;
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Takes back a Bitmap. Null, recycled and immutable Bitmaps are ignored (immutable ones are recycled), and so
+     * are Bitmaps of a size never acquired (recycled too). Callers must not use the Bitmap afterwards.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable() || bitmap.getConfig() == null) {
+            bitmap.recycle();
+            return;
+        }
+        String key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        if (!acquiredKeys.contains(key)) {
+            bitmap.recycle();
+            return;
+        }
+        ArrayDeque<Bitmap> free = freeByKey.get(key);
+        if (free == null) {
+            free = new ArrayDeque<>();
+            freeByKey.put(key, free);
+        }
+        free.addLast(bitmap);
+        releaseOrder.addLast(bitmap);
+        pooledBytes += bitmap.getAllocationByteCount();
+
+        while (pooledBytes > maxPooledBytes && !releaseOrder.isEmpty()) {
+            Bitmap oldest = releaseOrder.pollFirst();
+            freeByKey.get(key(oldest.getWidth(), oldest.getHeight(), oldest.getConfig())).removeFirstOccurrence(oldest);
+            pooledBytes -= oldest.getAllocationByteCount();
+            oldest.recycle();
+            evictions++;
+        }
+    }
+
+    /**
+     * Recycles every pooled Bitmap. Bitmaps still borrowed are unaffected.
+     */
+    public synchronized void clear() {
+        for (Bitmap bitmap : releaseOrder) {
+            bitmap.recycle();
+        }
+        releaseOrder.clear();
+        freeByKey.clear();
+        pooledBytes = 0;
+        Log.d(TAG, "Cleared: " + this);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+                + ", pooled=" + releaseOrder.size() + " (" + (pooledBytes / 1024) + " KB)}";
+    }
+
+    private static String key(int width, int height, Bitmap.Config config) {
+        return width + "x" + height + ":" + config.name();
+    }
+}
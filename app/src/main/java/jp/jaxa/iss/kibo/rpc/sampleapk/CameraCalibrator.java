@@ -0,0 +1,194 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Per-camera undistortion with precomputed remap tables.
+ *
+ * Intrinsics are registered once per camera. The first frame of a given camera and resolution
+ * builds the maps with initUndistortRectifyMap (fixed-point CV_16SC2); every later frame is a single remap.
+ * Safe to call from several threads: remaps share a read lock, while map creation, re-registration and
+ * {@link #release()} (which free Mats) take the write lock and so never run under a remap in progress.
+ */
+public class CameraCalibrator {
+
+    public static final String NAV_CAM = "NavCam";
+    public static final String DOCK_CAM = "DockCam";
+
+    // Simulator NavCam intrinsics (row-major camera matrix, then k1, k2, p1, p2, k3)
+    public static final double[] SIM_NAV_CAM_MATRIX = {
+            523.105750, 0.000000, 635.434258,
+            0.000000, 534.765913, 500.335102,
+            0.000000, 0.000000, 1.000000
+    };
+    public static final double[] SIM_NAV_CAM_DISTORTION = {-0.164787, 0.020375, -0.001572, -0.000369, 0.000000};
+
+    private static class Intrinsics {
+        final Mat cameraMatrix;
+        final Mat distortion;
+
+        Intrinsics(double[] cameraMatrixValues, double[] distortionValues) {
+            cameraMatrix = new Mat(3, 3, CvType.CV_64FC1);
+            cameraMatrix.put(0, 0, cameraMatrixValues);
+            distortion = new Mat(1, distortionValues.length, CvType.CV_64FC1);
+            distortion.put(0, 0, distortionValues);
+        }
+
+        void release() {
+            cameraMatrix.release();
+            distortion.release();
+        }
+    }
+
+    private static class RemapTables {
+        final Mat map1 = new Mat();
+        final Mat map2 = new Mat();
+
+        void release() {
+            map1.release();
+            map2.release();
+        }
+    }
+
+    private final Map<String, Intrinsics> intrinsicsByCamera = new HashMap<>();
+    private final Map<String, RemapTables> tablesByKey = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Registers (or replaces) the intrinsics of a camera. Cached maps of that camera are dropped.
+     *
+     * @param camera             Camera id, e.g. {@link #NAV_CAM}.
+     * @param cameraMatrixValues Row-major 3x3 camera matrix (9 values).
+     * @param distortionValues   Distortion coefficients (k1, k2, p1, p2[, k3]).
+     */
+    public void registerIntrinsics(String camera, double[] cameraMatrixValues, double[] distortionValues) {
+        if (cameraMatrixValues == null || cameraMatrixValues.length != 9 || distortionValues == null || distortionValues.length < 4) {
+            throw new IllegalArgumentException("Invalid intrinsics for camera " + camera);
+        }
+        lock.writeLock().lock();
+        try {
+            Intrinsics previous = intrinsicsByCamera.put(camera, new Intrinsics(cameraMatrixValues, distortionValues));
+            if (previous != null) {
+                previous.release();
+                String prefix = camera + "@";
+                Iterator<Map.Entry<String, RemapTables>> it = tablesByKey.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String, RemapTables> entry = it.next();
+                    if (entry.getKey().startsWith(prefix)) {
+                        entry.getValue().release();
+                        it.remove();
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean hasIntrinsics(String camera) {
+        lock.readLock().lock();
+        try {
+            return intrinsicsByCamera.containsKey(camera);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Focal lengths in pixels. Undistorted frames keep the camera matrix, so they apply to calibrated frames too.
+     *
+     * @return {fx, fy}, or null if no intrinsics are registered for the camera.
+     */
+    public double[] getFocalLengths(String camera) {
+        lock.readLock().lock();
+        try {
+            Intrinsics intrinsics = intrinsicsByCamera.get(camera);
+            if (intrinsics == null) {
+                return null;
+            }
+            return new double[]{intrinsics.cameraMatrix.get(0, 0)[0], intrinsics.cameraMatrix.get(1, 1)[0]};
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Undistorts {@code src} into the caller-supplied {@code dst}.
+     *
+     * @return false if no intrinsics are registered for the camera (dst is left untouched).
+     */
+    public boolean undistort(String camera, Mat src, Mat dst) {
+        String key = camera + "@" + src.cols() + "x" + src.rows();
+        lock.readLock().lock();
+        try {
+            RemapTables tables = tablesByKey.get(key);
+            if (tables == null) {
+                // First frame of this camera and size: build the maps under the write lock, then downgrade
+                lock.readLock().unlock();
+                lock.writeLock().lock();
+                try {
+                    tables = createTables(key, camera, src.cols(), src.rows());
+                } finally {
+                    lock.readLock().lock();
+                    lock.writeLock().unlock();
+                }
+                if (tables == null) {
+                    return false;
+                }
+            }
+            // The read lock keeps the maps alive until remap returns
+            Imgproc.remap(src, dst, tables.map1, tables.map2, Imgproc.INTER_LINEAR);
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the cached maps for the key or builds them. Caller holds the write lock.
+     */
+    private RemapTables createTables(String key, String camera, int width, int height) {
+        RemapTables tables = tablesByKey.get(key);
+        if (tables != null) {
+            return tables;
+        }
+        Intrinsics intrinsics = intrinsicsByCamera.get(camera);
+        if (intrinsics == null) {
+            return null;
+        }
+        tables = new RemapTables();
+        // Same projection as Calib3d.undistort: no rectification, new camera matrix = original
+        Mat noRectification = new Mat();
+        Calib3d.initUndistortRectifyMap(intrinsics.cameraMatrix, intrinsics.distortion, noRectification,
+                intrinsics.cameraMatrix, new Size(width, height), CvType.CV_16SC2, tables.map1, tables.map2);
+        noRectification.release();
+        tablesByKey.put(key, tables);
+        return tables;
+    }
+
+    public void release() {
+        lock.writeLock().lock();
+        try {
+            for (RemapTables tables : tablesByKey.values()) {
+                tables.release();
+            }
+            tablesByKey.clear();
+            for (Intrinsics intrinsics : intrinsicsByCamera.values()) {
+                intrinsics.release();
+            }
+            intrinsicsByCamera.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
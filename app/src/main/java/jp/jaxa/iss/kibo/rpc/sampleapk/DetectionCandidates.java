@@ -0,0 +1,65 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+/**
+ * Primitive, reusable storage for decoded detection candidates (one entry per surviving prediction slot).
+ * Boxes are kept in normalized [0, 1] coordinates, the same as {@link RobotVisionProcessor.DetectionResult}.
+ * Struct-of-arrays so decode and NMS can run without allocating an object per candidate.
+ */
+class DetectionCandidates {
+
+    float[] xmin;
+    float[] ymin;
+    float[] xmax;
+    float[] ymax;
+    float[] score;
+    int[] classId;
+    int[] slot;
+    int count;
+
+    DetectionCandidates(int capacity) {
+        allocate(Math.max(1, capacity));
+    }
+
+    private void allocate(int capacity) {
+        xmin = new float[capacity];
+        ymin = new float[capacity];
+        xmax = new float[capacity];
+        ymax = new float[capacity];
+        score = new float[capacity];
+        classId = new int[capacity];
+        slot = new int[capacity];
+    }
+
+    int capacity() {
+        return score.length;
+    }
+
+    /**
+     * Grows the arrays if needed. Existing entries are discarded.
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity > score.length) {
+            allocate(capacity);
+        }
+        count = 0;
+    }
+
+    void clear() {
+        count = 0;
+    }
+
+    void add(float x0, float y0, float x1, float y1, float confidence, int cls, int slotIndex) {
+        int i = count++;
+        xmin[i] = x0;
+        ymin[i] = y0;
+        xmax[i] = x1;
+        ymax[i] = y1;
+        score[i] = confidence;
+        classId[i] = cls;
+        slot[i] = slotIndex;
+    }
+
+    float area(int i) {
+        return (xmax[i] - xmin[i]) * (ymax[i] - ymin[i]);
+    }
+}
@@ -0,0 +1,248 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Reusable buffer arena for one interpreter.
+ * Holds the input tensor, output tensor, preprocessing Mats and decoded candidates so that
+ * steady-state inference does not allocate anything per frame.
+ * The input tensor is also wrapped by a Mat header per batch entry, so OpenCV writes the packed input straight into it.
+ * A batch dimension above 1 is used by tiled inference: each tile is packed into its own slice of one tensor.
+ * Not thread-safe: one arena belongs to one processor and is used by one frame at a time.
+ */
+class InferenceBuffers {
+
+    private final int batchSize;
+    private final int inputWidth;
+    private final int inputHeight;
+    private final int inputChannels;
+    private final int bytesPerInputElement;
+    private final int bytesPerOutputElement;
+
+    private final ByteBuffer inputBuffer;
+    private final ByteBuffer outputBuffer;
+    private final FloatBuffer[] outputFloats;
+    private final ByteBuffer[] outputBytes;
+    private final DetectionCandidates candidates;
+
+    // Byte input: 8-bit channel value -> quantized tensor byte. Identity (raw pixel bytes) until set.
+    private final byte[] inputQuantTable = new byte[256];
+    private final Mat inputQuantLut = new Mat(1, 256, CvType.CV_8UC1);
+    private boolean inputQuantIdentity = true;
+
+    // Preprocessing scratch and the Mat views over inputBuffer, one per batch entry (no pixel data of their own)
+    private final Size inputSize;
+    private final Mat resized = new Mat();
+    private final Mat rgb = new Mat();
+    private final Mat[] inputTensorMats;
+    // Perspective warp of a panel quad onto the whole input (see fillInputFromQuad)
+    private final MatOfPoint2f quadCorners = new MatOfPoint2f();
+    private final MatOfPoint2f inputCorners = new MatOfPoint2f();
+
+    /**
+     * @param inputShape            Interpreter input tensor shape, expected as [batch, height, width, channels].
+     * @param bytesPerInputElement  4 for float32 input, 1 for uint8/int8 input.
+     * @param outputShape           Interpreter output tensor shape, e.g. [1, 15, 4725] ([batch, 15, slots] when batched).
+     * @param bytesPerOutputElement 4 for float32 output, 1 for int8/uint8 output.
+     */
+    InferenceBuffers(int[] inputShape, int bytesPerInputElement, int[] outputShape, int bytesPerOutputElement) {
+        if (inputShape == null || inputShape.length != 4) {
+            throw new IllegalArgumentException("Expected input shape [N, H, W, C] but got " + Arrays.toString(inputShape));
+        }
+        this.batchSize = inputShape[0];
+        this.inputHeight = inputShape[1];
+        this.inputWidth = inputShape[2];
+        this.inputChannels = inputShape[3];
+        this.bytesPerInputElement = bytesPerInputElement;
+        this.bytesPerOutputElement = bytesPerOutputElement;
+
+        int outputElements = 1;
+        for (int dim : outputShape) {
+            outputElements *= dim;
+        }
+        int outputElementsPerEntry = outputElements / batchSize;
+        int inputBytesPerEntry = inputWidth * inputHeight * inputChannels * bytesPerInputElement;
+
+        inputBuffer = ByteBuffer.allocateDirect(inputBytesPerEntry * batchSize);
+        inputBuffer.order(ByteOrder.nativeOrder());
+
+        outputBuffer = ByteBuffer.allocateDirect(outputElements * bytesPerOutputElement);
+        outputBuffer.order(ByteOrder.nativeOrder());
+
+        inputSize = new Size(inputWidth, inputHeight);
+        int inputType = CvType.makeType(bytesPerInputElement == 4 ? CvType.CV_32F : CvType.CV_8U, inputChannels);
+        inputTensorMats = new Mat[batchSize];
+        outputFloats = new FloatBuffer[batchSize];
+        outputBytes = new ByteBuffer[batchSize];
+        for (int b = 0; b < batchSize; b++) {
+            inputTensorMats[b] = new Mat(inputHeight, inputWidth, inputType, slice(inputBuffer, b * inputBytesPerEntry, inputBytesPerEntry));
+            ByteBuffer entryOutput = slice(outputBuffer, b * outputElementsPerEntry * bytesPerOutputElement, outputElementsPerEntry * bytesPerOutputElement);
+            outputBytes[b] = entryOutput;
+            outputFloats[b] = bytesPerOutputElement == 4 ? entryOutput.asFloatBuffer() : null;
+        }
+
+        // One candidate per prediction slot at most (decoded one batch entry at a time)
+        candidates = new DetectionCandidates(outputShape[outputShape.length - 1]);
+
+        for (int v = 0; v < 256; v++) {
+            inputQuantTable[v] = (byte) v;
+        }
+        inputQuantLut.put(0, 0, inputQuantTable);
+
+        inputCorners.fromArray(new Point(0, 0), new Point(inputWidth - 1, 0),
+                new Point(inputWidth - 1, inputHeight - 1), new Point(0, inputHeight - 1));
+    }
+
+    /**
+     * Maps 8-bit channel values to the input tensor's quantized domain, where the model sees v / 255
+     * (the same normalization as the float path). A uint8 model with scale 1/255 and zero point 0 keeps
+     * the raw bytes; an int8 model with zero point -128 gets v - 128. A scale of 0 (no quantization
+     * params) also keeps the raw bytes.
+     *
+     * @param signed true for an int8 input tensor, false for uint8.
+     */
+    void setInputQuantization(float scale, int zeroPoint, boolean signed) {
+        int min = signed ? -128 : 0;
+        int max = signed ? 127 : 255;
+        boolean identity = true;
+        for (int v = 0; v < 256; v++) {
+            int q = scale > 0.0f ? Math.round((v / 255.0f) / scale) + zeroPoint : v;
+            inputQuantTable[v] = (byte) Math.max(min, Math.min(max, q));
+            identity &= inputQuantTable[v] == (byte) v;
+        }
+        inputQuantLut.put(0, 0, inputQuantTable);
+        inputQuantIdentity = identity;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Packs an RGBA frame (as produced by Utils.bitmapToMat) into the input tensor as RGB:
+     * bilinear resize to the input size, then a single convertTo with 1/255 scaling for float models
+     * or a table lookup into the quantized domain (see {@link #setInputQuantization}) for byte models.
+     * The last step writes straight into the tensor's ByteBuffer.
+     *
+     * @param frame RGBA frame of any size. Not modified or released.
+     * @return The rewound input buffer, ready for interpreter.run.
+     */
+    ByteBuffer fillInputFromMat(Mat frame) {
+        return fillInputFromMat(frame, 0);
+    }
+
+    /**
+     * Packs a frame (or tile) into one entry of a batched input tensor; see {@link #fillInputFromMat(Mat)}.
+     *
+     * @return The rewound input buffer (all entries).
+     */
+    ByteBuffer fillInputFromMat(Mat frame, int batchIndex) {
+        Mat inputTensorMat = inputTensorMats[batchIndex];
+        if (inputChannels != 3) {
+            throw new IllegalStateException("Only 3-channel model inputs are supported, got " + inputChannels);
+        }
+        Imgproc.resize(frame, resized, inputSize, 0, 0, Imgproc.INTER_LINEAR);
+        return packResized(inputTensorMat);
+    }
+
+    /**
+     * Packs the panel inside a quad into the input tensor in one pass: a perspective warp maps the quad corners
+     * onto the input corners and samples the frame straight at the input size (bilinear), then the same
+     * conversion as {@link #fillInputFromMat(Mat)} follows. The model sees the panel rectified and filling
+     * the whole input, with no mask, crop copy or second resize.
+     *
+     * @param frame   Full RGBA frame. Not modified or released.
+     * @param corners Panel corners in frame coordinates, ordered top-left, top-right, bottom-right, bottom-left
+     *                (see {@link PanelCropper#orderCorners}).
+     * @return The rewound input buffer, ready for interpreter.run.
+     */
+    ByteBuffer fillInputFromQuad(Mat frame, Point[] corners) {
+        Mat inputTensorMat = inputTensorMats[0];
+        if (inputChannels != 3) {
+            throw new IllegalStateException("Only 3-channel model inputs are supported, got " + inputChannels);
+        }
+        quadCorners.fromArray(corners);
+        Mat transform = Imgproc.getPerspectiveTransform(quadCorners, inputCorners);
+        try {
+            Imgproc.warpPerspective(frame, resized, transform, inputSize, Imgproc.INTER_LINEAR);
+        } finally {
+            transform.release();
+        }
+        return packResized(inputTensorMat);
+    }
+
+    /**
+     * Copies the RGBA image behind the last packed input (resized crop or warped panel), e.g. to save what the model saw.
+     */
+    void copyLastInputImage(Mat dst) {
+        resized.copyTo(dst);
+    }
+
+    private ByteBuffer packResized(Mat inputTensorMat) {
+        if (bytesPerInputElement == 4) {
+            Imgproc.cvtColor(resized, rgb, Imgproc.COLOR_RGBA2RGB);
+            rgb.convertTo(inputTensorMat, CvType.CV_32FC3, 1.0 / 255.0);
+        } else if (inputQuantIdentity) {
+            Imgproc.cvtColor(resized, inputTensorMat, Imgproc.COLOR_RGBA2RGB);
+        } else {
+            Imgproc.cvtColor(resized, rgb, Imgproc.COLOR_RGBA2RGB);
+            Core.LUT(rgb, inputQuantLut, inputTensorMat);
+        }
+        inputBuffer.rewind();
+        return inputBuffer;
+    }
+
+    /**
+     * @return The output buffer, rewound so the interpreter writes from the start.
+     */
+    ByteBuffer prepareOutput() {
+        outputBuffer.clear();
+        return outputBuffer;
+    }
+
+    /**
+     * @return Raw output bytes of one batch entry, indexed from 0.
+     */
+    ByteBuffer getOutputBytes(int batchIndex) {
+        return outputBytes[batchIndex];
+    }
+
+    /**
+     * @return Float view over the output of one batch entry, indexed from 0, or null for quantized outputs.
+     */
+    FloatBuffer getOutputFloats(int batchIndex) {
+        return outputFloats[batchIndex];
+    }
+
+    DetectionCandidates getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * Releases the preprocessing Mats. The direct buffers are reclaimed by the GC.
+     */
+    void release() {
+        resized.release();
+        rgb.release();
+        for (Mat inputTensorMat : inputTensorMats) {
+            inputTensorMat.release();
+        }
+        inputQuantLut.release();
+        quadCorners.release();
+        inputCorners.release();
+    }
+}
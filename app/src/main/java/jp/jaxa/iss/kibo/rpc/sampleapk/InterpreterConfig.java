@@ -0,0 +1,120 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CPU execution settings for the LiteRT interpreter: thread count, XNNPACK delegate and fp16 relaxation.
+ * Immutable; see {@link RobotVisionProcessor} for the optional startup auto-tune over {@link #autoTuneCandidates}.
+ */
+public class InterpreterConfig {
+
+    private static final String TAG = "InterpreterConfig";
+
+    /** The interpreter's own defaults (runtime-chosen threads, XNNPACK on in LiteRT 2.17, no fp16). */
+    public static final InterpreterConfig DEFAULT = new InterpreterConfig(-1, true, false);
+
+    /** Thread count, or -1 to let the runtime decide. */
+    public final int numThreads;
+    public final boolean useXnnpack;
+    public final boolean allowFp16PrecisionForFp32;
+
+    public InterpreterConfig(int numThreads, boolean useXnnpack, boolean allowFp16PrecisionForFp32) {
+        if (numThreads == 0 || numThreads < -1) {
+            throw new IllegalArgumentException("numThreads must be positive or -1, got " + numThreads);
+        }
+        this.numThreads = numThreads;
+        this.useXnnpack = useXnnpack;
+        this.allowFp16PrecisionForFp32 = allowFp16PrecisionForFp32;
+    }
+
+    Interpreter.Options toOptions() {
+        Interpreter.Options options = new Interpreter.Options();
+        options.setNumThreads(numThreads);
+        options.setUseXNNPACK(useXnnpack);
+        options.setAllowFp16PrecisionForFp32(allowFp16PrecisionForFp32);
+        return options;
+    }
+
+    /**
+     * Configs worth timing on this device, most likely winners first: all-core, 2 and 1 threads with XNNPACK,
+     * and the same with fp16 allowed only if the CPU has half-precision arithmetic (otherwise fp16 is a no-op
+     * and would just be timed twice). At most six configs.
+     */
+    public static List<InterpreterConfig> autoTuneCandidates(int availableCores, boolean fp16Supported) {
+        List<Integer> threadCounts = new ArrayList<>();
+        threadCounts.add(Math.max(1, availableCores));
+        if (availableCores > 2) {
+            threadCounts.add(2);
+        }
+        if (availableCores > 1) {
+            threadCounts.add(1);
+        }
+
+        List<InterpreterConfig> candidates = new ArrayList<>();
+        for (int threads : threadCounts) {
+            candidates.add(new InterpreterConfig(threads, true, false));
+            if (fp16Supported) {
+                candidates.add(new InterpreterConfig(threads, true, true));
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * @return true if /proc/cpuinfo lists ARMv8.2 half-precision arithmetic (asimdhp), which XNNPACK needs for fp16.
+     */
+    public static boolean deviceSupportsFp16() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/cpuinfo"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("Features") && line.contains(" asimdhp")) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read /proc/cpuinfo: " + e.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof InterpreterConfig)) {
+            return false;
+        }
+        InterpreterConfig other = (InterpreterConfig) o;
+        return numThreads == other.numThreads && useXnnpack == other.useXnnpack
+                && allowFp16PrecisionForFp32 == other.allowFp16PrecisionForFp32;
+    }
+
+    @Override
+    public int hashCode() {
+        return (numThreads * 31 + (useXnnpack ? 1 : 0)) * 31 + (allowFp16PrecisionForFp32 ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "InterpreterConfig{threads=" + (numThreads == -1 ? "auto" : String.valueOf(numThreads))
+                + ", xnnpack=" + useXnnpack + ", fp16=" + allowFp16PrecisionForFp32 + "}";
+    }
+}
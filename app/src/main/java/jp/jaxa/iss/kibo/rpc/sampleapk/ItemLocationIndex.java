@@ -0,0 +1,131 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inverted index from item label to the areas and frames it was seen in, filled during the patrol.
+ *
+ * Every frame adds one {@link Sighting} per label (its best detection in that frame), with the pose the frame
+ * was taken from. The best sighting per (label, area) and per label over accepted areas are kept up to date
+ * as sightings and area reports arrive, so the target lookup after the astronaut report is a few map reads.
+ *
+ * Frames and area reports arrive from worker threads; all methods are synchronized.
+ *
+ * @param <P> Pose type recorded with each frame.
+ */
+public class ItemLocationIndex<P> {
+
+    public static class Sighting<P> {
+        public final String label;
+        public final String areaName;
+        public final int frameIndex;
+        public final P pose;
+        public final float confidence;
+        /** Box area in frame pixels, so views from different crops compare directly. */
+        public final float boxArea;
+
+        Sighting(String label, String areaName, int frameIndex, P pose, float confidence, float boxArea) {
+            this.label = label;
+            this.areaName = areaName;
+            this.frameIndex = frameIndex;
+            this.pose = pose;
+            this.confidence = confidence;
+            this.boxArea = boxArea;
+        }
+
+        /**
+         * How good a view of the item the frame gives: confidence weighted by apparent size.
+         * The square root keeps a large but uncertain box from beating a clear, slightly smaller one.
+         */
+        public float viewScore() {
+            return confidence * (float) Math.sqrt(boxArea);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s in %s frame %d (conf: %.2f, area: %.0f px)", label, areaName, frameIndex, confidence, boxArea);
+        }
+    }
+
+    private final Map<String, Sighting<P>> bestByLabelAndArea = new HashMap<>();
+    private final Map<String, Set<String>> acceptedByArea = new HashMap<>();
+    private final Map<String, Sighting<P>> bestAcceptedByLabel = new HashMap<>();
+
+    /**
+     * Records the detections of one frame (already filtered at {@link RobotVisionProcessor#CONFIDENCE_THRESHOLD}).
+     *
+     * @param regionAreaPx Frame pixels covered by the region the boxes are normalized to (the crop ROI, the panel
+     *                     quad or the whole frame); scales the normalized box areas to frame pixels.
+     */
+    public synchronized void addFrame(String areaName, int frameIndex, P pose, List<RobotVisionProcessor.DetectionResult> detections,
+                                      double regionAreaPx) {
+        Map<String, RobotVisionProcessor.DetectionResult> bestInFrame = new HashMap<>();
+        for (RobotVisionProcessor.DetectionResult d : detections) {
+            RobotVisionProcessor.DetectionResult best = bestInFrame.get(d.label);
+            if (best == null || d.confidence > best.confidence) {
+                bestInFrame.put(d.label, d);
+            }
+        }
+        for (RobotVisionProcessor.DetectionResult d : bestInFrame.values()) {
+            Sighting<P> sighting = new Sighting<>(d.label, areaName, frameIndex, pose, d.confidence,
+                    (float) (d.getBoxArea() * regionAreaPx));
+
+            String key = key(d.label, areaName);
+            Sighting<P> best = bestByLabelAndArea.get(key);
+            if (best == null || sighting.viewScore() > best.viewScore()) {
+                bestByLabelAndArea.put(key, sighting);
+                if (isAccepted(areaName, d.label)) {
+                    offerAccepted(sighting);
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the labels reported for an area. Only accepted (label, area) pairs are returned by {@link #bestAccepted}.
+     */
+    public synchronized void setAccepted(String areaName, Collection<String> labels) {
+        acceptedByArea.put(areaName, new HashSet<>(labels));
+        for (String label : labels) {
+            Sighting<P> best = bestByLabelAndArea.get(key(label, areaName));
+            if (best != null) {
+                offerAccepted(best);
+            }
+        }
+    }
+
+    public synchronized boolean isAccepted(String areaName, String label) {
+        Set<String> accepted = acceptedByArea.get(areaName);
+        return accepted != null && accepted.contains(label);
+    }
+
+    /**
+     * @return Best view of the label over all areas where it was accepted, or null.
+     */
+    public synchronized Sighting<P> bestAccepted(String label) {
+        return bestAcceptedByLabel.get(label);
+    }
+
+    /**
+     * @return Best view of the label in one area, accepted or not, or null.
+     */
+    public synchronized Sighting<P> best(String label, String areaName) {
+        return bestByLabelAndArea.get(key(label, areaName));
+    }
+
+    private void offerAccepted(Sighting<P> sighting) {
+        Sighting<P> best = bestAcceptedByLabel.get(sighting.label);
+        if (best == null || sighting.viewScore() > best.viewScore()) {
+            bestAcceptedByLabel.put(sighting.label, sighting);
+        }
+    }
+
+    private static String key(String label, String areaName) {
+        return label + '\u0000' + areaName;
+    }
+}
@@ -0,0 +1,192 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.os.Debug;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-stage latency histograms and memory counters for the mission pipeline.
+ *
+ * Recording is lock-free (a few atomic increments), so it can stay on in flight and is safe from the
+ * mission thread, the vision workers and the image writer at once. Each histogram has four sub-buckets
+ * per power of two of microseconds, so percentiles are exact to within ~19%; count, total and max are exact.
+ *
+ * Memory is sampled, not traced: the Java heap in use and the native heap, where OpenCV allocates its Mats.
+ */
+public class MissionMetrics {
+
+    public enum Stage {
+        MOVE_TO("moveTo"),
+        CAPTURE_NAV_CAM("getBitmapNavCam"),
+        CAPTURE_DOCK_CAM("getBitmapDockCam"),
+        CALIBRATE("calibrate"),
+        CROP("crop"),
+        PREPROCESS("preprocess"),
+        INFERENCE("interpreter.run"),
+        DECODE("decode"),
+        NMS("nms"),
+        SAVE_IMAGE("saveBitmapImage");
+
+        final String displayName;
+
+        Stage(String displayName) {
+            this.displayName = displayName;
+        }
+    }
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Octaves of microseconds: up to ~2^31 us (35 min) per sample
+    private static final int OCTAVES = 32;
+
+    private static class LatencyHistogram {
+        final AtomicLongArray buckets = new AtomicLongArray(OCTAVES * SUB_BUCKETS);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            buckets.incrementAndGet(bucketOf(nanos / 1000));
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        /**
+         * @return Upper bound in ms of the bucket holding the given quantile, capped at the exact max.
+         */
+        double quantileMillis(double quantile) {
+            long total = count.get();
+            if (total == 0) {
+                return 0.0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int b = 0; b < buckets.length(); b++) {
+                seen += buckets.get(b);
+                if (seen >= rank) {
+                    return Math.min(bucketLowerMicros(b + 1) / 1000.0, maxNanos.get() / 1e6);
+                }
+            }
+            return maxNanos.get() / 1e6;
+        }
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+    private final long createdNanos = System.nanoTime();
+
+    private final AtomicLong memorySamples = new AtomicLong();
+    private final AtomicLong lastJavaHeapBytes = new AtomicLong();
+    private final AtomicLong peakJavaHeapBytes = new AtomicLong();
+    private final AtomicLong lastNativeHeapBytes = new AtomicLong();
+    private final AtomicLong peakNativeHeapBytes = new AtomicLong();
+
+    public MissionMetrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records one duration ending now.
+     *
+     * @param startNanos {@link System#nanoTime()} taken when the stage started.
+     */
+    public void record(Stage stage, long startNanos) {
+        histograms[stage.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Samples the Java heap in use and the native heap allocation. Call once per frame.
+     */
+    public void sampleMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        long javaHeap = runtime.totalMemory() - runtime.freeMemory();
+        long nativeHeap = Debug.getNativeHeapAllocatedSize();
+        memorySamples.incrementAndGet();
+        lastJavaHeapBytes.set(javaHeap);
+        lastNativeHeapBytes.set(nativeHeap);
+        raiseTo(peakJavaHeapBytes, javaHeap);
+        raiseTo(peakNativeHeapBytes, nativeHeap);
+    }
+
+    /**
+     * @return One line per stage that has samples, then the memory counters.
+     */
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("mission metrics after %.1f s (times in ms; percentiles are bucket upper bounds)%n",
+                (System.nanoTime() - createdNanos) / 1e9));
+        sb.append(String.format("%-18s %6s %9s %9s %9s %9s %9s %10s%n", "stage", "n", "mean", "p50", "p90", "p99", "max", "total"));
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram h = histograms[stage.ordinal()];
+            long n = h.count.get();
+            if (n == 0) {
+                continue;
+            }
+            double totalMillis = h.totalNanos.get() / 1e6;
+            sb.append(String.format("%-18s %6d %9.2f %9.2f %9.2f %9.2f %9.2f %10.1f%n", stage.displayName, n,
+                    totalMillis / n, h.quantileMillis(0.50), h.quantileMillis(0.90), h.quantileMillis(0.99),
+                    h.maxNanos.get() / 1e6, totalMillis));
+        }
+        sb.append(String.format("memory (%d samples, MB): java heap last %.1f peak %.1f, native heap last %.1f peak %.1f%n",
+                memorySamples.get(), mb(lastJavaHeapBytes.get()), mb(peakJavaHeapBytes.get()),
+                mb(lastNativeHeapBytes.get()), mb(peakNativeHeapBytes.get())));
+        return sb.toString();
+    }
+
+    /**
+     * Writes {@link #summary()} to the file, replacing it.
+     */
+    public void writeSummary(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"));
+        try {
+            writer.write(summary());
+        } finally {
+            writer.close();
+        }
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros; // first octaves: one bucket per microsecond
+        }
+        int octave = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (octave - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        int bucket = (octave - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        return Math.min(bucket, OCTAVES * SUB_BUCKETS - 1);
+    }
+
+    static long bucketLowerMicros(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int octave = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (octave - SUB_BUCKET_BITS);
+    }
+
+    private static void raiseTo(AtomicLong peak, long value) {
+        long current = peak.get();
+        while (value > current && !peak.compareAndSet(current, value)) {
+            current = peak.get();
+        }
+    }
+
+    private static double mb(long bytes) {
+        return bytes / (1024.0 * 1024.0);
+    }
+}
@@ -0,0 +1,256 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import java.util.Arrays;
+
+/**
+ * Class-aware non-maximum suppression over {@link DetectionCandidates}.
+ *
+ * 1. Keeps at most {@code maxCandidates} highest-scoring candidates with a primitive min-heap (no boxing, no full sort).
+ * 2. Buckets the survivors per class (counting sort, score order preserved), since boxes of different classes never suppress each other.
+ * 3. Within a class, registers kept boxes in a coarse grid over the normalized image,
+ *    so IoU is only computed against kept boxes that share at least one cell.
+ *
+ * All scratch arrays are reused across calls. Not thread-safe.
+ */
+class NmsEngine {
+
+    private static final int DEFAULT_GRID_SIZE = 8;
+
+    private final int maxCandidates;
+    private final float iouThreshold;
+    private final int gridSize;
+
+    // Top-K min-heap of candidate indices, ordered by score
+    private final int[] heap;
+    private int heapSize;
+
+    // Candidate indices sorted by descending score
+    private final int[] order;
+    private int orderCount;
+
+    // Per-class buckets over 'order'
+    private int[] classCounts = new int[16];
+    private int[] classStarts = new int[17];
+    private int[] classCursor = new int[16];
+    private final int[] bucketed;
+
+    // Spatial grid: each cell is a singly linked list of nodes pointing at kept candidates
+    private final int[] cellHead;
+    private int[] nodeCandidate = new int[256];
+    private int[] nodeNext = new int[256];
+    private int nodeCount;
+
+    // Visit stamps so a kept box spanning several cells is compared only once per candidate
+    private int[] visitStamp = new int[0];
+    private int stamp;
+
+    private boolean[] keptFlag = new boolean[0];
+    private final int[] kept;
+    private int keptCount;
+
+    NmsEngine(int maxCandidates, float iouThreshold) {
+        this(maxCandidates, iouThreshold, DEFAULT_GRID_SIZE);
+    }
+
+    NmsEngine(int maxCandidates, float iouThreshold, int gridSize) {
+        this.maxCandidates = maxCandidates;
+        this.iouThreshold = iouThreshold;
+        this.gridSize = gridSize;
+        this.heap = new int[maxCandidates];
+        this.order = new int[maxCandidates];
+        this.bucketed = new int[maxCandidates];
+        this.kept = new int[maxCandidates];
+        this.cellHead = new int[gridSize * gridSize];
+    }
+
+    /**
+     * Runs NMS on the candidates.
+     *
+     * @return Number of kept candidates; their indices into {@code candidates} are in {@link #getKept()},
+     *         sorted by descending score across all classes.
+     */
+    int run(DetectionCandidates candidates) {
+        keptCount = 0;
+        int n = candidates.count;
+        if (n == 0) {
+            return 0;
+        }
+        if (visitStamp.length < n) {
+            visitStamp = new int[candidates.capacity()];
+            keptFlag = new boolean[candidates.capacity()];
+            stamp = 0;
+        }
+
+        selectTopK(candidates.score, n);
+        bucketByClass(candidates.classId);
+
+        for (int c = 0; c < classCounts.length; c++) {
+            int start = classStarts[c];
+            int end = start + classCounts[c];
+            if (end - start > 0) {
+                suppressClass(candidates, start, end);
+            }
+        }
+
+        // Emit survivors in global score order
+        for (int i = 0; i < orderCount; i++) {
+            int idx = order[i];
+            if (keptFlag[idx]) {
+                kept[keptCount++] = idx;
+                keptFlag[idx] = false;
+            }
+        }
+        return keptCount;
+    }
+
+    int[] getKept() {
+        return kept;
+    }
+
+    private void selectTopK(float[] score, int n) {
+        heapSize = 0;
+        for (int i = 0; i < n; i++) {
+            if (heapSize < maxCandidates) {
+                heap[heapSize] = i;
+                siftUp(score, heapSize++);
+            } else if (score[i] > score[heap[0]]) {
+                heap[0] = i;
+                siftDown(score, 0);
+            }
+        }
+
+        // Pop the minimum repeatedly, filling 'order' from the back -> descending scores
+        orderCount = heapSize;
+        for (int pos = heapSize - 1; pos >= 0; pos--) {
+            order[pos] = heap[0];
+            heap[0] = heap[--heapSize];
+            if (heapSize > 0) {
+                siftDown(score, 0);
+            }
+        }
+    }
+
+    private void siftUp(float[] score, int pos) {
+        int item = heap[pos];
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (score[heap[parent]] <= score[item]) {
+                break;
+            }
+            heap[pos] = heap[parent];
+            pos = parent;
+        }
+        heap[pos] = item;
+    }
+
+    private void siftDown(float[] score, int pos) {
+        int item = heap[pos];
+        int half = heapSize >>> 1;
+        while (pos < half) {
+            int child = 2 * pos + 1;
+            int right = child + 1;
+            if (right < heapSize && score[heap[right]] < score[heap[child]]) {
+                child = right;
+            }
+            if (score[item] <= score[heap[child]]) {
+                break;
+            }
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        heap[pos] = item;
+    }
+
+    private void bucketByClass(int[] classId) {
+        int maxClass = 0;
+        for (int i = 0; i < orderCount; i++) {
+            maxClass = Math.max(maxClass, classId[order[i]]);
+        }
+        if (classCounts.length <= maxClass) {
+            classCounts = new int[maxClass + 1];
+            classStarts = new int[maxClass + 2];
+            classCursor = new int[maxClass + 1];
+        }
+        Arrays.fill(classCounts, 0);
+        for (int i = 0; i < orderCount; i++) {
+            classCounts[classId[order[i]]]++;
+        }
+        classStarts[0] = 0;
+        for (int c = 0; c < classCounts.length; c++) {
+            classStarts[c + 1] = classStarts[c] + classCounts[c];
+        }
+        // Stable placement keeps descending score order inside each class
+        System.arraycopy(classStarts, 0, classCursor, 0, classCursor.length);
+        for (int i = 0; i < orderCount; i++) {
+            int idx = order[i];
+            bucketed[classCursor[classId[idx]]++] = idx;
+        }
+    }
+
+    private void suppressClass(DetectionCandidates cand, int start, int end) {
+        Arrays.fill(cellHead, -1);
+        nodeCount = 0;
+
+        for (int b = start; b < end; b++) {
+            int idx = bucketed[b];
+            int cx0 = cell(cand.xmin[idx]);
+            int cx1 = cell(cand.xmax[idx]);
+            int cy0 = cell(cand.ymin[idx]);
+            int cy1 = cell(cand.ymax[idx]);
+
+            stamp++;
+            boolean suppressed = false;
+            for (int cy = cy0; cy <= cy1 && !suppressed; cy++) {
+                for (int cx = cx0; cx <= cx1 && !suppressed; cx++) {
+                    for (int node = cellHead[cy * gridSize + cx]; node != -1; node = nodeNext[node]) {
+                        int other = nodeCandidate[node];
+                        if (visitStamp[other] == stamp) {
+                            continue;
+                        }
+                        visitStamp[other] = stamp;
+                        if (iou(cand, idx, other) > iouThreshold) {
+                            suppressed = true;
+                            break;
+                        }
+                    }
+                }
+            }
+            if (suppressed) {
+                continue;
+            }
+
+            keptFlag[idx] = true;
+            for (int cy = cy0; cy <= cy1; cy++) {
+                for (int cx = cx0; cx <= cx1; cx++) {
+                    addNode(cy * gridSize + cx, idx);
+                }
+            }
+        }
+    }
+
+    private int cell(float v) {
+        int c = (int) (v * gridSize);
+        return c < 0 ? 0 : (c >= gridSize ? gridSize - 1 : c);
+    }
+
+    private void addNode(int cellIndex, int candidate) {
+        if (nodeCount == nodeCandidate.length) {
+            nodeCandidate = Arrays.copyOf(nodeCandidate, nodeCount * 2);
+            nodeNext = Arrays.copyOf(nodeNext, nodeCount * 2);
+        }
+        nodeCandidate[nodeCount] = candidate;
+        nodeNext[nodeCount] = cellHead[cellIndex];
+        cellHead[cellIndex] = nodeCount++;
+    }
+
+    static float iou(DetectionCandidates c, int a, int b) {
+        float intersectionWidth = Math.max(0, Math.min(c.xmax[a], c.xmax[b]) - Math.max(c.xmin[a], c.xmin[b]));
+        float intersectionHeight = Math.max(0, Math.min(c.ymax[a], c.ymax[b]) - Math.max(c.ymin[a], c.ymin[b]));
+        float intersectionArea = intersectionWidth * intersectionHeight;
+        float unionArea = c.area(a) + c.area(b) - intersectionArea;
+        if (unionArea == 0) {
+            return 0;
+        }
+        return intersectionArea / unionArea;
+    }
+}
@@ -0,0 +1,447 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Contour-based crop stage shared by inference and image persistence.
+ * Finds the largest convex 4-point contour (the white item panel) once per frame and crops to its bounding box.
+ *
+ * The contour search runs on a pyrDown copy of the frame (the panel outline survives downsampling), the quad is
+ * scaled back and its corners refined at full resolution, and the crop itself is taken from the full frame.
+ *
+ * Intermediate Mats live in a per-thread {@link Workspace} and are reused across frames of the same size, and the
+ * masked output is handed back to it by {@link CropResult#release()}. In steady state a crop only allocates the
+ * contour Mats that findContours returns and the small quad.
+ */
+public class PanelCropper {
+
+    private static final int PADDING = 10;
+
+    /** pyrDown levels of the contour search in {@link #crop(Mat)}: 2 = quarter resolution (320x240 for NavCam). */
+    public static final int DEFAULT_PYRAMID_LEVELS = 2;
+    /** The search image is not downsampled below this width. */
+    static final int MIN_SEARCH_WIDTH = 160;
+    private static final int FULL_RES_THRESHOLD_BLOCK = 15;
+    private static final Size NO_ZERO_ZONE = new Size(-1, -1);
+    private static final TermCriteria CORNER_CRITERIA = new TermCriteria(TermCriteria.EPS + TermCriteria.COUNT, 20, 0.05);
+
+    private static final Scalar WHITE_LOWER = new Scalar(0, 0, 150);
+    private static final Scalar WHITE_UPPER = new Scalar(180, 40, 255);
+    private static final Scalar BLACK = Scalar.all(0);
+    private static final Scalar FILL = new Scalar(255);
+
+    /**
+     * Reusable buffers of one thread. {@code create} is a no-op when size and type are unchanged.
+     */
+    private static class Workspace {
+        final Mat gray = new Mat();
+        final Mat thresh = new Mat();
+        final Mat hsv = new Mat();
+        final Mat mask = new Mat();
+        final Mat edged = new Mat();
+        final Mat hierarchy = new Mat();
+        final Mat polyMask = new Mat();
+        final List<Mat> pyramid = new ArrayList<>();
+        final Mat cornerGray = new Mat();
+        final MatOfPoint2f corner = new MatOfPoint2f();
+        final MatOfPoint2f contour2f = new MatOfPoint2f();
+        final MatOfPoint2f approxCurve = new MatOfPoint2f();
+        final List<MatOfPoint> contours = new ArrayList<>();
+        final List<MatOfPoint> quadList = new ArrayList<>(1);
+        /** Masked frame backing the last crop; lent to one CropResult at a time. */
+        final Mat output = new Mat();
+        final AtomicBoolean outputLent = new AtomicBoolean();
+
+        Mat pyramidLevel(int level) {
+            while (pyramid.size() <= level) {
+                pyramid.add(new Mat());
+            }
+            return pyramid.get(level);
+        }
+
+        void release() {
+            for (Mat level : pyramid) {
+                level.release();
+            }
+            cornerGray.release();
+            corner.release();
+            gray.release();
+            thresh.release();
+            hsv.release();
+            mask.release();
+            edged.release();
+            hierarchy.release();
+            polyMask.release();
+            contour2f.release();
+            approxCurve.release();
+            if (!outputLent.get()) {
+                output.release();
+            }
+        }
+    }
+
+    private static final List<Workspace> allWorkspaces = new ArrayList<>();
+
+    private static final ThreadLocal<Workspace> workspace = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue() {
+            Workspace ws = new Workspace();
+            synchronized (allWorkspaces) {
+                allWorkspaces.add(ws);
+            }
+            return ws;
+        }
+    };
+
+    public static class CropResult {
+        /** Detected panel quad, or null when no suitable contour was found. */
+        public final MatOfPoint quad;
+        /** Padded bounding box of the quad in frame coordinates (the whole frame if no quad). */
+        public final Rect roi;
+        /** Masked crop of the frame, or the frame itself when no quad was found. */
+        public final Mat cropped;
+
+        private final Mat ownedImage;
+        // Set when ownedImage is the workspace output, which is returned instead of released
+        private final AtomicBoolean lentFrom;
+
+        CropResult(MatOfPoint quad, Rect roi, Mat cropped, Mat ownedImage, AtomicBoolean lentFrom) {
+            this.quad = quad;
+            this.roi = roi;
+            this.cropped = cropped;
+            this.ownedImage = ownedImage;
+            this.lentFrom = lentFrom;
+        }
+
+        public boolean hasQuad() {
+            return quad != null;
+        }
+
+        /**
+         * Releases the Mats owned by this result. The input frame is never released.
+         */
+        public void release() {
+            if (quad != null) quad.release();
+            if (ownedImage != null) {
+                cropped.release();
+                if (lentFrom != null) {
+                    lentFrom.set(false);
+                } else {
+                    ownedImage.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Crops with the default coarse-to-fine search: {@link #DEFAULT_PYRAMID_LEVELS} pyrDown levels and corner refinement.
+     *
+     * @see #crop(Mat, int, boolean)
+     */
+    public static CropResult crop(Mat frame) {
+        return crop(frame, DEFAULT_PYRAMID_LEVELS, true);
+    }
+
+    /**
+     * Runs the gray/adaptive-threshold + HSV white mask + findContours pipeline on a pyrDown copy of the frame,
+     * scales the best quad back up, optionally refines its corners at full resolution, and crops the full frame.
+     *
+     * @param frame          Calibrated frame as returned by Utils.bitmapToMat (RGBA). Not modified or released.
+     * @param pyramidLevels  Number of pyrDown halvings for the contour search (0 = full resolution). Capped so the
+     *                       search image stays at least {@link #MIN_SEARCH_WIDTH} wide.
+     * @param refineCorners  Refine the scaled-up corners with cornerSubPix in small full-resolution windows.
+     * @return The crop result; never null. Call {@link CropResult#release()} when done.
+     */
+    public static CropResult crop(Mat frame, int pyramidLevels, boolean refineCorners) {
+        return cropToQuad(frame, findQuad(frame, pyramidLevels, refineCorners));
+    }
+
+    /**
+     * Coarse-to-fine quad search (see {@link #crop(Mat, int, boolean)}) without cropping.
+     *
+     * @return The panel quad in {@code image} coordinates, or null. The caller owns it.
+     */
+    static MatOfPoint findQuad(Mat image, int pyramidLevels, boolean refineCorners) {
+        Workspace ws = workspace.get();
+        int levels = 0;
+        Mat search = image;
+        while (levels < pyramidLevels && image.cols() >> (levels + 1) >= MIN_SEARCH_WIDTH) {
+            Mat next = ws.pyramidLevel(levels);
+            Imgproc.pyrDown(search, next);
+            search = next;
+            levels++;
+        }
+        int scale = 1 << levels;
+
+        MatOfPoint location = findPanelQuad(search, scale, ws);
+        if (location != null && scale > 1) {
+            MatOfPoint scaled = upscaleQuad(location, scale, refineCorners ? image : null, ws);
+            location.release();
+            location = scaled;
+        }
+        return location;
+    }
+
+    /**
+     * Quad search restricted to a window of the frame, e.g. around a predicted quad.
+     *
+     * @return The panel quad in frame coordinates, or null. The caller owns it.
+     */
+    static MatOfPoint findQuad(Mat frame, Rect window, int pyramidLevels, boolean refineCorners) {
+        Mat sub = frame.submat(window);
+        MatOfPoint local;
+        try {
+            local = findQuad(sub, pyramidLevels, refineCorners);
+        } finally {
+            sub.release();
+        }
+        if (local == null) {
+            return null;
+        }
+        Point[] corners = local.toArray();
+        local.release();
+        for (Point corner : corners) {
+            corner.x += window.x;
+            corner.y += window.y;
+        }
+        return new MatOfPoint(corners);
+    }
+
+    /**
+     * Crops the full-resolution frame to a known panel quad: masks everything outside the quad and takes its padded
+     * bounding box. Takes ownership of {@code quad}; a null or degenerate quad gives a whole-frame result.
+     */
+    static CropResult cropToQuad(Mat frame, MatOfPoint quad) {
+        Workspace ws = workspace.get();
+        Rect fullFrame = new Rect(0, 0, frame.cols(), frame.rows());
+        if (quad == null) {
+            return new CropResult(null, fullFrame, frame, null, null);
+        }
+
+        Rect box = Imgproc.boundingRect(quad);
+        int xMin = Math.max(0, box.x - PADDING);
+        int yMin = Math.max(0, box.y - PADDING);
+        int xMax = Math.min(frame.cols(), box.x + box.width + PADDING);
+        int yMax = Math.min(frame.rows(), box.y + box.height + PADDING);
+        if (xMax <= xMin || yMax <= yMin) {
+            quad.release();
+            return new CropResult(null, fullFrame, frame, null, null);
+        }
+        Rect roi = new Rect(xMin, yMin, xMax - xMin, yMax - yMin);
+
+        // Keep only the panel: mask everything outside the quad. Only the ROI is touched, not the whole frame.
+        ws.polyMask.create(roi.height, roi.width, CvType.CV_8UC1);
+        ws.polyMask.setTo(BLACK);
+        ws.quadList.add(quad);
+        try {
+            Imgproc.fillPoly(ws.polyMask, ws.quadList, FILL, Imgproc.LINE_8, 0, new Point(-roi.x, -roi.y));
+        } finally {
+            ws.quadList.clear();
+        }
+
+        // The workspace output is reused unless the previous crop of this thread is still held
+        boolean lend = ws.outputLent.compareAndSet(false, true);
+        Mat sampleImage = lend ? ws.output : new Mat();
+        sampleImage.create(roi.height, roi.width, frame.type());
+        sampleImage.setTo(BLACK);
+        Mat frameRoi = frame.submat(roi);
+        try {
+            frameRoi.copyTo(sampleImage, ws.polyMask);
+        } finally {
+            frameRoi.release();
+        }
+        return new CropResult(quad, roi, sampleImage.submat(0, roi.height, 0, roi.width), sampleImage, lend ? ws.outputLent : null);
+    }
+
+    /**
+     * Orders quad corners for a perspective warp: top-left, top-right, bottom-right, bottom-left.
+     * The corners are sorted clockwise (as seen in the image) around their centroid, starting at the
+     * corner with the smallest x + y, so a panel rotated by up to ~45 degrees keeps its orientation.
+     */
+    static Point[] orderCorners(Point[] quad) {
+        double cx = 0;
+        double cy = 0;
+        for (Point p : quad) {
+            cx += p.x;
+            cy += p.y;
+        }
+        final double centerX = cx / quad.length;
+        final double centerY = cy / quad.length;
+        Point[] sorted = quad.clone();
+        // Image y points down, so increasing atan2 angle runs clockwise on screen
+        Arrays.sort(sorted, new Comparator<Point>() {
+            @Override
+            public int compare(Point a, Point b) {
+                return Double.compare(Math.atan2(a.y - centerY, a.x - centerX), Math.atan2(b.y - centerY, b.x - centerX));
+            }
+        });
+        int first = 0;
+        for (int i = 1; i < sorted.length; i++) {
+            if (sorted[i].x + sorted[i].y < sorted[first].x + sorted[first].y) {
+                first = i;
+            }
+        }
+        Point[] ordered = new Point[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            ordered[i] = sorted[(first + i) % sorted.length];
+        }
+        return ordered;
+    }
+
+    /**
+     * Threshold + white mask + contour search on one image.
+     *
+     * @param scale Downsampling factor of {@code image} relative to the full frame; scales the threshold block size.
+     * @return The panel quad in {@code image} coordinates, or null.
+     */
+    private static MatOfPoint findPanelQuad(Mat image, int scale, Workspace ws) {
+        List<MatOfPoint> contours = ws.contours;
+        // Keep the threshold neighbourhood at the same physical size: 15 px at full resolution, odd and >= 3
+        int blockSize = Math.max(3, (FULL_RES_THRESHOLD_BLOCK / scale) | 1);
+        try {
+            Imgproc.cvtColor(image, ws.gray, Imgproc.COLOR_BGR2GRAY);
+            Imgproc.adaptiveThreshold(ws.gray, ws.thresh, 255,
+                    Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C,
+                    Imgproc.THRESH_BINARY, blockSize, 5);
+
+            // White/grey panel mask
+            Imgproc.cvtColor(image, ws.hsv, Imgproc.COLOR_BGR2HSV);
+            Core.inRange(ws.hsv, WHITE_LOWER, WHITE_UPPER, ws.mask);
+
+            Core.bitwise_and(ws.thresh, ws.mask, ws.edged);
+            // findContours may modify its input; edged is not used afterwards
+            Imgproc.findContours(ws.edged, contours, ws.hierarchy,
+                    Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+
+            return findLargestQuad(contours, ws.contour2f, ws.approxCurve);
+        } finally {
+            for (MatOfPoint contour : contours) {
+                contour.release();
+            }
+            contours.clear();
+        }
+    }
+
+    /**
+     * Maps a quad found at 1/scale resolution to full-resolution coordinates.
+     *
+     * @param frame Full-resolution frame to refine the corners on, or null to only scale.
+     */
+    private static MatOfPoint upscaleQuad(MatOfPoint quad, int scale, Mat frame, Workspace ws) {
+        Point[] corners = quad.toArray();
+        for (Point corner : corners) {
+            corner.x *= scale;
+            corner.y *= scale;
+        }
+        if (frame != null) {
+            for (int i = 0; i < corners.length; i++) {
+                corners[i] = refineCorner(frame, corners[i], scale, ws);
+            }
+        }
+        Point[] rounded = new Point[corners.length];
+        for (int i = 0; i < corners.length; i++) {
+            rounded[i] = new Point(Math.round(corners[i].x), Math.round(corners[i].y));
+        }
+        return new MatOfPoint(rounded);
+    }
+
+    /**
+     * Refines one corner with cornerSubPix in a window of about twice the downsampling error around it.
+     * Keeps the scaled corner when the window does not fit in the frame or the refinement drifts too far.
+     */
+    private static Point refineCorner(Mat frame, Point corner, int scale, Workspace ws) {
+        int halfWindow = 2 * scale;
+        int margin = 2 * halfWindow;
+        int x0 = (int) Math.round(corner.x) - margin;
+        int y0 = (int) Math.round(corner.y) - margin;
+        int side = 2 * margin + 1;
+        if (x0 < 0 || y0 < 0 || x0 + side > frame.cols() || y0 + side > frame.rows()) {
+            return corner;
+        }
+        Mat window = frame.submat(new Rect(x0, y0, side, side));
+        try {
+            Imgproc.cvtColor(window, ws.cornerGray, Imgproc.COLOR_BGR2GRAY);
+        } finally {
+            window.release();
+        }
+        ws.corner.fromArray(new Point(corner.x - x0, corner.y - y0));
+        Imgproc.cornerSubPix(ws.cornerGray, ws.corner, new Size(halfWindow, halfWindow), NO_ZERO_ZONE, CORNER_CRITERIA);
+        Point refined = ws.corner.toArray()[0];
+        refined.x += x0;
+        refined.y += y0;
+        double dx = refined.x - corner.x;
+        double dy = refined.y - corner.y;
+        if (dx * dx + dy * dy > (double) scale * scale * 2) {
+            return corner;
+        }
+        return refined;
+    }
+
+    /**
+     * Releases the workspaces of all threads. Call only when no crop is running and no CropResult is held,
+     * e.g. on service shutdown.
+     */
+    public static void releaseWorkspaces() {
+        synchronized (allWorkspaces) {
+            for (Workspace ws : allWorkspaces) {
+                ws.release();
+            }
+            allWorkspaces.clear();
+        }
+        workspace.remove();
+    }
+
+    /**
+     * @return The largest convex 4-point approximation among the contours, or null.
+     */
+    private static MatOfPoint findLargestQuad(List<MatOfPoint> contours, MatOfPoint2f contour2f, MatOfPoint2f approxCurve) {
+        if (contours.isEmpty()) {
+            return null;
+        }
+        final Map<MatOfPoint, Double> areas = new IdentityHashMap<>(contours.size());
+        for (MatOfPoint contour : contours) {
+            areas.put(contour, Imgproc.contourArea(contour));
+        }
+        Collections.sort(contours, new Comparator<MatOfPoint>() {
+            @Override
+            public int compare(MatOfPoint a, MatOfPoint b) {
+                return Double.compare(areas.get(b), areas.get(a));
+            }
+        });
+
+        for (MatOfPoint contour : contours) {
+            contour.convertTo(contour2f, CvType.CV_32F);
+            double epsilon = 0.02 * Imgproc.arcLength(contour2f, true);
+            Imgproc.approxPolyDP(contour2f, approxCurve, epsilon, true);
+
+            if (approxCurve.total() == 4) {
+                MatOfPoint candidate = new MatOfPoint();
+                approxCurve.convertTo(candidate, CvType.CV_32S);
+                if (Imgproc.isContourConvex(candidate)) {
+                    return candidate;
+                }
+                candidate.release();
+            }
+        }
+        return null;
+    }
+}
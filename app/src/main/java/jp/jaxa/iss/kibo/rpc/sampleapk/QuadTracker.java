@@ -0,0 +1,296 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Panel quad tracker across the waypoints of one area, where the robot only translates between frames.
+ *
+ * The quad of the last detected frame is shifted (and scaled for motion along the optical axis) by the image motion
+ * that the pose delta causes for a panel at {@link #NOMINAL_DEPTH_M}, and the panel is searched only in a window
+ * around that prediction. The detection is accepted if it lies close to the prediction; otherwise the full-frame
+ * search of {@link PanelCropper} runs as before. Every detection corrects a per-axis gain (observed / predicted
+ * shift), which absorbs the unknown depth and mounting errors after the first pair of frames.
+ *
+ * The frames of an area are processed one at a time, in waypoint order, on the single vision worker, so each frame
+ * is predicted from the previous waypoint's frame.
+ */
+public class QuadTracker {
+
+    /** Assumed camera-to-panel distance until the gains are learned. */
+    static final double NOMINAL_DEPTH_M = 0.8;
+    /** Window margin around the predicted quad: this fraction of the predicted shift plus of the quad size. */
+    private static final double WINDOW_SHIFT_FRACTION = 0.35;
+    private static final double WINDOW_SIZE_FRACTION = 0.15;
+    private static final int MIN_WINDOW_MARGIN_PX = 40;
+    /** A tracked quad is accepted if every corner is within this fraction of the predicted diagonal (plus a few px). */
+    private static final double CORNER_TOLERANCE_FRACTION = 0.12;
+    private static final double CORNER_TOLERANCE_PX = 8.0;
+    private static final double MAX_AREA_RATIO = 1.35;
+    /** Shifts smaller than this do not update the gains (too noisy). */
+    private static final double MIN_SHIFT_FOR_GAIN_PX = 12.0;
+    private static final double MAX_GAIN = 4.0;
+    private static final int WINDOW_PYRAMID_LEVELS = 1;
+
+    /**
+     * Robot pose a frame was taken from: position in meters and orientation quaternion (normalized here).
+     */
+    public static class Pose {
+        final double x, y, z;
+        final double qx, qy, qz, qw;
+
+        public Pose(double x, double y, double z, double qx, double qy, double qz, double qw) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            double norm = Math.sqrt(qx * qx + qy * qy + qz * qz + qw * qw);
+            this.qx = qx / norm;
+            this.qy = qy / norm;
+            this.qz = qz / norm;
+            this.qw = qw / norm;
+        }
+    }
+
+    private final String camera;
+    private final double fx;
+    private final double fy;
+
+    // State of the last completed frame
+    private Point[] lastQuad;
+    private Pose lastPose;
+    private double gainU = 1.0;
+    private double gainV = 1.0;
+
+    private int tracked;
+    private int fallbacks;
+    private int fullSearches;
+
+    /**
+     * @param camera {@link CameraCalibrator#NAV_CAM} or {@link CameraCalibrator#DOCK_CAM}; selects the camera mounting.
+     * @param fx     Focal length in pixels (x).
+     * @param fy     Focal length in pixels (y).
+     */
+    public QuadTracker(String camera, double fx, double fy) {
+        this.camera = camera;
+        this.fx = fx;
+        this.fy = fy;
+    }
+
+    /**
+     * Crops the frame, tracking the panel from the last completed frame when possible.
+     *
+     * @param frame Calibrated frame (RGBA). Not modified or released.
+     * @param pose  Robot pose the frame was taken from.
+     * @return The crop result; never null. Call {@link PanelCropper.CropResult#release()} when done.
+     */
+    public PanelCropper.CropResult crop(Mat frame, Pose pose) {
+        return PanelCropper.cropToQuad(frame, findQuad(frame, pose));
+    }
+
+    /**
+     * Finds the panel quad like {@link #crop(Mat, Pose)} without cropping, e.g. to warp it straight
+     * into the model input.
+     *
+     * @return The panel quad in frame coordinates, or null. The caller owns it.
+     */
+    public MatOfPoint findQuad(Mat frame, Pose pose) {
+        Point[] previousQuad;
+        Pose previousPose;
+        double currentGainU;
+        double currentGainV;
+        synchronized (this) {
+            previousQuad = lastQuad;
+            previousPose = lastPose;
+            currentGainU = gainU;
+            currentGainV = gainV;
+        }
+
+        double[] unitShift = null;
+        MatOfPoint quad = null;
+        if (previousQuad != null) {
+            unitShift = imageMotion(previousPose, pose);
+            Point[] predicted = predict(previousQuad, unitShift, currentGainU, currentGainV);
+            quad = searchNear(frame, predicted, unitShift, currentGainU, currentGainV);
+            synchronized (this) {
+                if (quad != null) {
+                    tracked++;
+                } else {
+                    fallbacks++;
+                }
+            }
+        } else {
+            synchronized (this) {
+                fullSearches++;
+            }
+        }
+        if (quad == null) {
+            quad = PanelCropper.findQuad(frame, PanelCropper.DEFAULT_PYRAMID_LEVELS, true);
+        }
+
+        if (quad != null) {
+            update(previousQuad, unitShift, quad.toArray(), pose);
+        }
+        return quad;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("QuadTracker{%s, tracked=%d, fallbacks=%d, full=%d, gain=(%.2f, %.2f)}",
+                camera, tracked, fallbacks, fullSearches, gainU, gainV);
+    }
+
+    private synchronized void update(Point[] previousQuad, double[] unitShift, Point[] quad, Pose pose) {
+        if (previousQuad != null && unitShift != null) {
+            Point before = centroid(previousQuad);
+            Point after = centroid(quad);
+            if (Math.abs(unitShift[0]) >= MIN_SHIFT_FOR_GAIN_PX) {
+                gainU = clamp((after.x - before.x) / unitShift[0]);
+            }
+            if (Math.abs(unitShift[1]) >= MIN_SHIFT_FOR_GAIN_PX) {
+                gainV = clamp((after.y - before.y) / unitShift[1]);
+            }
+        }
+        lastQuad = quad;
+        lastPose = pose;
+    }
+
+    /**
+     * Looks for the panel in a window around the prediction.
+     *
+     * @return The detected quad if it matches the prediction, else null.
+     */
+    private MatOfPoint searchNear(Mat frame, Point[] predicted, double[] unitShift, double currentGainU, double currentGainV) {
+        MatOfPoint predictedMat = new MatOfPoint(predicted);
+        Rect box = Imgproc.boundingRect(predictedMat);
+        predictedMat.release();
+        double shift = Math.hypot(unitShift[0] * currentGainU, unitShift[1] * currentGainV);
+        int margin = (int) Math.max(MIN_WINDOW_MARGIN_PX,
+                WINDOW_SHIFT_FRACTION * shift + WINDOW_SIZE_FRACTION * Math.max(box.width, box.height));
+        int x0 = Math.max(0, box.x - margin);
+        int y0 = Math.max(0, box.y - margin);
+        int x1 = Math.min(frame.cols(), box.x + box.width + margin);
+        int y1 = Math.min(frame.rows(), box.y + box.height + margin);
+        // Prediction (mostly) left the frame: nothing to track
+        if (x1 - x0 < box.width / 2 || y1 - y0 < box.height / 2 || x1 <= x0 || y1 <= y0) {
+            return null;
+        }
+
+        MatOfPoint found = PanelCropper.findQuad(frame, new Rect(x0, y0, x1 - x0, y1 - y0), WINDOW_PYRAMID_LEVELS, true);
+        if (found == null) {
+            return null;
+        }
+        if (!matches(predicted, found.toArray())) {
+            found.release();
+            return null;
+        }
+        return found;
+    }
+
+    private static boolean matches(Point[] predicted, Point[] found) {
+        double areaPredicted = Math.abs(signedArea(predicted));
+        double areaFound = Math.abs(signedArea(found));
+        if (areaPredicted <= 0 || areaFound <= 0) {
+            return false;
+        }
+        double ratio = areaFound / areaPredicted;
+        if (ratio > MAX_AREA_RATIO || ratio < 1.0 / MAX_AREA_RATIO) {
+            return false;
+        }
+        double diagonal = Math.sqrt(areaPredicted * 2);
+        double tolerance = CORNER_TOLERANCE_FRACTION * diagonal + CORNER_TOLERANCE_PX;
+        // Corner order may start anywhere; every predicted corner needs a found corner nearby
+        for (Point p : predicted) {
+            double nearest = Double.MAX_VALUE;
+            for (Point f : found) {
+                nearest = Math.min(nearest, Math.hypot(p.x - f.x, p.y - f.y));
+            }
+            if (nearest > tolerance) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Image motion of a static panel point for the camera moving from {@code from} to {@code to}, at gain 1.
+     *
+     * @return {du, dv, scale}: shift in pixels and magnification from motion along the optical axis.
+     */
+    double[] imageMotion(Pose from, Pose to) {
+        double[] world = {to.x - from.x, to.y - from.y, to.z - from.z};
+        double[] body = rotateInverse(from, world);
+        // Astrobee body frame: +X forward, +Y starboard, +Z deck. NavCam looks forward, DockCam aft;
+        // image x is to the right and image y down. Mounting tilts are ignored; the gains absorb them.
+        double right;
+        double down = body[2];
+        double forward;
+        if (CameraCalibrator.DOCK_CAM.equals(camera)) {
+            forward = -body[0];
+            right = -body[1];
+        } else {
+            forward = body[0];
+            right = body[1];
+        }
+        double depthAfter = Math.max(0.1, NOMINAL_DEPTH_M - forward);
+        return new double[]{-fx * right / NOMINAL_DEPTH_M, -fy * down / NOMINAL_DEPTH_M, NOMINAL_DEPTH_M / depthAfter};
+    }
+
+    private static Point[] predict(Point[] quad, double[] unitShift, double currentGainU, double currentGainV) {
+        Point center = centroid(quad);
+        double du = unitShift[0] * currentGainU;
+        double dv = unitShift[1] * currentGainV;
+        double scale = unitShift[2];
+        Point[] predicted = new Point[quad.length];
+        for (int i = 0; i < quad.length; i++) {
+            predicted[i] = new Point(center.x + du + (quad[i].x - center.x) * scale,
+                    center.y + dv + (quad[i].y - center.y) * scale);
+        }
+        return predicted;
+    }
+
+    /**
+     * Rotates a world-frame vector into the body frame of the pose (inverse of the pose quaternion).
+     */
+    private static double[] rotateInverse(Pose pose, double[] v) {
+        // v' = q* v q, using t = 2 * cross(u, v) with u = -(qx, qy, qz)
+        double ux = -pose.qx;
+        double uy = -pose.qy;
+        double uz = -pose.qz;
+        double w = pose.qw;
+        double tx = 2 * (uy * v[2] - uz * v[1]);
+        double ty = 2 * (uz * v[0] - ux * v[2]);
+        double tz = 2 * (ux * v[1] - uy * v[0]);
+        return new double[]{
+                v[0] + w * tx + (uy * tz - uz * ty),
+                v[1] + w * ty + (uz * tx - ux * tz),
+                v[2] + w * tz + (ux * ty - uy * tx)
+        };
+    }
+
+    private static Point centroid(Point[] quad) {
+        double x = 0;
+        double y = 0;
+        for (Point p : quad) {
+            x += p.x;
+            y += p.y;
+        }
+        return new Point(x / quad.length, y / quad.length);
+    }
+
+    private static double signedArea(Point[] polygon) {
+        double area = 0;
+        for (int i = 0; i < polygon.length; i++) {
+            Point a = polygon[i];
+            Point b = polygon[(i + 1) % polygon.length];
+            area += a.x * b.y - b.x * a.y;
+        }
+        return area / 2;
+    }
+
+    private static double clamp(double gain) {
+        return Math.max(-MAX_GAIN, Math.min(MAX_GAIN, gain));
+    }
+}
@@ -1,21 +1,20 @@
 package jp.jaxa.iss.kibo.rpc.sampleapk;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.util.Log;
 
 import org.opencv.android.Utils;
-import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint;
-import org.opencv.core.MatOfPoint2f;
-import org.opencv.core.Scalar;
-import org.opencv.imgproc.Imgproc;
+import org.opencv.core.Rect;
 
 import org.tensorflow.lite.Interpreter;
 import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Tensor;
 
 import java.io.BufferedReader;
 import java.io.FileInputStream;
@@ -23,13 +22,10 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
@@ -39,27 +35,55 @@ public class RobotVisionProcessor {
     private static final String TAG = "RobotVisionProcessor";
 
     private Interpreter interpreter;
+    private InterpreterConfig interpreterConfig;
     private int modelInputWidth;
     private int modelInputHeight;
     private int modelInputChannels;
     private boolean isInputFloat;
+    // Quantized input (int8/uint8) parameters, applied to every arena's packing table
+    private float inputScale;
+    private int inputZeroPoint;
+    private boolean isInputSigned;
+    // Quantized output (int8/uint8): decoded in the quantized domain with the tensor's scale/zero point
+    private boolean isOutputQuantized;
+    private boolean isOutputSigned;
+    private float outputScale;
+    private int outputZeroPoint;
+    private InferenceBuffers buffers;
+    // One arena per input resolution ("WxH"), so switching back and forth does not reallocate
+    private final Map<String, InferenceBuffers> buffersByResolution = new HashMap<>();
+    private YoloOutputDecoder decoder;
+    private final NmsEngine nms = new NmsEngine(MAX_NMS_CANDIDATES, IOU_THRESHOLD);
+    // Tiled inference: boxes of all tiles in frame coordinates, and whether the model accepts a batch dimension
+    private final DetectionCandidates mergedTileCandidates = new DetectionCandidates(1);
+    private boolean batchedTilesSupported = true;
+    // Tile batches run on a second interpreter kept at the batched shape, so the single-frame interpreter is never
+    // resized (resizeInput + allocateTensors) back and forth between tiled and cropped frames
+    private MappedByteBuffer modelBuffer;
+    private Interpreter batchInterpreter;
+    private InferenceBuffers batchBuffers;
+    private String batchShapeKey;
+    // Optional per-stage timing; null disables it (e.g. during auto-tune and warm-up)
+    private MissionMetrics metrics;
 
     private List<String> labels;
     private Context context;
 
-    private static final int NUM_PREDICTION_SLOTS = 4725;
-
-    private static final int X_CENTER_COORD_ROW_INDEX = 0;
-    private static final int Y_CENTER_COORD_ROW_INDEX = 1;
-    private static final int WIDTH_COORD_ROW_INDEX = 2;
-    private static final int HEIGHT_COORD_ROW_INDEX = 3;
-    private static final int FIRST_CLASS_PROB_ROW_INDEX = 4;
+    // YOLO downsamples by up to 32, so input sides must be multiples of it
+    private static final int INPUT_SIZE_MULTIPLE = 32;
 
     public static final float CONFIDENCE_THRESHOLD = 0.65f;
     private static final float IOU_THRESHOLD = 0.45f;
+    private static final int MAX_NMS_CANDIDATES = 300; // Top-K cap on candidates entering NMS
     private static final int NUM_CLASSES = 11;
 
-    public static class DetectionResult {
+    // Auto-tune: untimed runs absorb tensor allocation and kernel setup, then the timed runs are averaged
+    private static final int AUTO_TUNE_WARMUP_RUNS = 1;
+    private static final int AUTO_TUNE_TIMED_RUNS = 3;
+    // No new candidate is tried once the auto-tune has run this long; the best one so far is kept
+    private static final long AUTO_TUNE_BUDGET_MS = 8000;
+
+    public static class DetectionResult implements AreaEvidence.Detection {
         public float xmin, ymin, xmax, ymax; // Normalized coordinates [0, 1]
         public float confidence;
         public int classId;
@@ -78,6 +102,26 @@ public class RobotVisionProcessor {
             this.label = label;
         }
 
+        @Override
+        public String getLabel() {
+            return label;
+        }
+
+        @Override
+        public int getClassId() {
+            return classId;
+        }
+
+        @Override
+        public float getConfidence() {
+            return confidence;
+        }
+
+        @Override
+        public float getBoxArea() {
+            return (xmax - xmin) * (ymax - ymin);
+        }
+
         public float calculateIoU(DetectionResult other) {
             float intersectionXmin = Math.max(xmin, other.xmin);
             float intersectionYmin = Math.max(ymin, other.ymin);
@@ -109,6 +153,19 @@ public class RobotVisionProcessor {
 
     public RobotVisionProcessor(Context context, String modelAssetName, String labelsAssetName,
                                 int inputWidth, int inputHeight, int inputChannels, boolean isInputFloat) throws IOException {
+        this(context, modelAssetName, labelsAssetName, inputWidth, inputHeight, inputChannels, isInputFloat,
+                InterpreterConfig.DEFAULT, false);
+    }
+
+    /**
+     * @param interpreterConfig Execution settings for the interpreter.
+     * @param autoTune          If true, times a few inferences with each of {@link InterpreterConfig#autoTuneCandidates}
+     *                          (plus {@code interpreterConfig}) and keeps the fastest. Adds at most about
+     *                          {@link #AUTO_TUNE_BUDGET_MS} plus one candidate's timing to startup.
+     */
+    public RobotVisionProcessor(Context context, String modelAssetName, String labelsAssetName,
+                                int inputWidth, int inputHeight, int inputChannels, boolean isInputFloat,
+                                InterpreterConfig interpreterConfig, boolean autoTune) throws IOException {
         this.context = context;
         this.modelInputWidth = inputWidth;
         this.modelInputHeight = inputHeight;
@@ -116,15 +173,66 @@ public class RobotVisionProcessor {
         this.isInputFloat = isInputFloat;
 
         try {
-            MappedByteBuffer modelBuffer = loadModelFileFromAssets(context, modelAssetName);
-            Interpreter.Options options = new Interpreter.Options();
-            interpreter = new Interpreter(modelBuffer, options);
-            Log.d(TAG, "LiteRT model loaded successfully from assets: " + modelAssetName);
-
-            int[] outputShape = interpreter.getOutputTensor(0).shape();
-            Log.d(TAG, "Model output tensor shape: " + Arrays.toString(outputShape));
-            if (outputShape.length != 3 || outputShape[0] != 1 || outputShape[1] != (4 + NUM_CLASSES) || outputShape[2] != NUM_PREDICTION_SLOTS) {
-                Log.e(TAG, "Mismatch in expected model output tensor shape! Expected [1, " + (4 + NUM_CLASSES) + ", " + NUM_PREDICTION_SLOTS + "] but got " + Arrays.toString(outputShape) + ". Post-processing logic might be incorrect.");
+            modelBuffer = loadModelFileFromAssets(context, modelAssetName);
+            if (autoTune) {
+                List<InterpreterConfig> candidates = new ArrayList<>();
+                candidates.add(interpreterConfig);
+                for (InterpreterConfig candidate : InterpreterConfig.autoTuneCandidates(
+                        Runtime.getRuntime().availableProcessors(), InterpreterConfig.deviceSupportsFp16())) {
+                    if (!candidate.equals(interpreterConfig)) {
+                        candidates.add(candidate);
+                    }
+                }
+                autoTuneInterpreter(modelBuffer, candidates);
+            } else {
+                interpreter = new Interpreter(modelBuffer, interpreterConfig.toOptions());
+                this.interpreterConfig = interpreterConfig;
+            }
+            Log.d(TAG, "LiteRT model loaded successfully from assets: " + modelAssetName + " with " + this.interpreterConfig);
+
+            // The tensor types decide the execution mode; the isInputFloat argument only has to agree with them
+            Tensor inputTensor = interpreter.getInputTensor(0);
+            Tensor outputTensor = interpreter.getOutputTensor(0);
+            boolean modelInputFloat = inputTensor.dataType() == DataType.FLOAT32;
+            if (modelInputFloat != isInputFloat) {
+                Log.w(TAG, "Requested isInputFloat=" + isInputFloat + " but model input tensor is " + inputTensor.dataType() + ". Using the model's type.");
+                this.isInputFloat = modelInputFloat;
+            }
+            if (!this.isInputFloat) {
+                Tensor.QuantizationParams inputQuant = inputTensor.quantizationParams();
+                inputScale = inputQuant.getScale();
+                inputZeroPoint = inputQuant.getZeroPoint();
+                isInputSigned = inputTensor.dataType() == DataType.INT8;
+                Log.d(TAG, "Quantized input " + inputTensor.dataType() + ": scale=" + inputScale + ", zeroPoint=" + inputZeroPoint);
+            }
+            DataType outputType = outputTensor.dataType();
+            isOutputQuantized = outputType == DataType.INT8 || outputType == DataType.UINT8;
+            if (isOutputQuantized) {
+                isOutputSigned = outputType == DataType.INT8;
+                Tensor.QuantizationParams outputQuant = outputTensor.quantizationParams();
+                outputScale = outputQuant.getScale();
+                outputZeroPoint = outputQuant.getZeroPoint();
+                Log.d(TAG, "Quantized output " + outputType + ": scale=" + outputScale + ", zeroPoint=" + outputZeroPoint);
+            } else if (outputType != DataType.FLOAT32) {
+                throw new IllegalStateException("Unsupported model output tensor type: " + outputType);
+            }
+
+            int[] nativeInputShape = inputTensor.shape();
+            Log.d(TAG, "Model input tensor shape: " + Arrays.toString(nativeInputShape) + ", output tensor shape: " + Arrays.toString(outputTensor.shape()));
+            if (nativeInputShape.length != 4) {
+                throw new IllegalStateException("Expected input shape [1, H, W, C] but got " + Arrays.toString(nativeInputShape));
+            }
+            if (nativeInputShape[3] != inputChannels) {
+                Log.w(TAG, "Requested " + inputChannels + " input channels but the model has " + nativeInputShape[3] + ". Using the model's channels.");
+            }
+            this.modelInputChannels = nativeInputShape[3];
+
+            decoder = new YoloOutputDecoder(NUM_CLASSES, 1);
+            try {
+                applyInputShape(inputWidth, inputHeight);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                Log.w(TAG, "Cannot run the model at " + inputWidth + "x" + inputHeight + " (" + e.getMessage() + "). Using the model's shape " + Arrays.toString(nativeInputShape) + ".");
+                applyInputShape(nativeInputShape[2], nativeInputShape[1]);
             }
 
         } catch (Exception e) {
@@ -145,13 +253,190 @@ public class RobotVisionProcessor {
         }
     }
 
+    /**
+     * Builds one interpreter per candidate config, times it on a zero-filled input and keeps the fastest one open.
+     * Candidates that fail to build (e.g. XNNPACK unavailable) are skipped. Once {@link #AUTO_TUNE_BUDGET_MS}
+     * has passed, the remaining candidates are skipped too and the fastest one so far is kept.
+     */
+    private void autoTuneInterpreter(MappedByteBuffer modelBuffer, List<InterpreterConfig> candidates) {
+        long bestNanos = Long.MAX_VALUE;
+        long tuneStart = System.nanoTime();
+        for (InterpreterConfig candidate : candidates) {
+            long elapsedMs = (System.nanoTime() - tuneStart) / 1000000;
+            if (interpreter != null && elapsedMs >= AUTO_TUNE_BUDGET_MS) {
+                Log.i(TAG, "Auto-tune: time budget of " + AUTO_TUNE_BUDGET_MS + " ms used up after " + elapsedMs + " ms, keeping the best so far.");
+                break;
+            }
+            Interpreter trial;
+            try {
+                trial = new Interpreter(modelBuffer, candidate.toOptions());
+            } catch (Exception e) {
+                Log.w(TAG, "Auto-tune: cannot build interpreter with " + candidate + ": " + e.getMessage());
+                continue;
+            }
+
+            ByteBuffer input = ByteBuffer.allocateDirect(trial.getInputTensor(0).numBytes()).order(ByteOrder.nativeOrder());
+            ByteBuffer output = ByteBuffer.allocateDirect(trial.getOutputTensor(0).numBytes()).order(ByteOrder.nativeOrder());
+            long meanNanos;
+            try {
+                for (int i = 0; i < AUTO_TUNE_WARMUP_RUNS; i++) {
+                    runOnce(trial, input, output);
+                }
+                long start = System.nanoTime();
+                for (int i = 0; i < AUTO_TUNE_TIMED_RUNS; i++) {
+                    runOnce(trial, input, output);
+                }
+                meanNanos = (System.nanoTime() - start) / AUTO_TUNE_TIMED_RUNS;
+            } catch (Exception e) {
+                Log.w(TAG, "Auto-tune: inference failed with " + candidate + ": " + e.getMessage());
+                trial.close();
+                continue;
+            }
+            Log.i(TAG, "Auto-tune: " + candidate + " -> " + (meanNanos / 1000000.0) + " ms/inference");
+
+            if (meanNanos < bestNanos) {
+                bestNanos = meanNanos;
+                if (interpreter != null) {
+                    interpreter.close();
+                }
+                interpreter = trial;
+                interpreterConfig = candidate;
+            } else {
+                trial.close();
+            }
+        }
+        if (interpreter == null) {
+            throw new IllegalStateException("Auto-tune: no candidate interpreter config could run the model.");
+        }
+        Log.i(TAG, "Auto-tune selected " + interpreterConfig + " (" + (bestNanos / 1000000.0) + " ms/inference)");
+    }
+
+    private static void runOnce(Interpreter trial, ByteBuffer input, ByteBuffer output) {
+        input.rewind();
+        output.clear();
+        trial.run(input, output);
+    }
+
+    /**
+     * Switches the model input resolution, e.g. 320x320 for fast passes over large targets or 640x640 for small ones.
+     * Resizes the interpreter input, re-allocates tensors and takes the prediction slot count from the new output shape.
+     * The first frame after a switch pays for the re-allocation; call {@link #warmUp} to move that cost elsewhere.
+     */
+    public synchronized void setInputResolution(int width, int height) {
+        if (interpreter == null) {
+            throw new IllegalStateException("LiteRT interpreter not initialized. Check if it loaded correctly.");
+        }
+        if (width == modelInputWidth && height == modelInputHeight) {
+            return;
+        }
+        int previousWidth = modelInputWidth;
+        int previousHeight = modelInputHeight;
+        try {
+            applyInputShape(width, height);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            Log.e(TAG, "Cannot switch input resolution to " + width + "x" + height + ": " + e.getMessage() + ". Keeping " + previousWidth + "x" + previousHeight + ".");
+            applyInputShape(previousWidth, previousHeight);
+            throw e;
+        }
+    }
+
+    public synchronized int getInputWidth() {
+        return modelInputWidth;
+    }
+
+    public synchronized int getInputHeight() {
+        return modelInputHeight;
+    }
+
+    private void applyInputShape(int width, int height) {
+        if (width <= 0 || height <= 0 || width % INPUT_SIZE_MULTIPLE != 0 || height % INPUT_SIZE_MULTIPLE != 0) {
+            throw new IllegalArgumentException("Input resolution must be a positive multiple of " + INPUT_SIZE_MULTIPLE + ", got " + width + "x" + height);
+        }
+        int[] outputShape = resizeInterpreter(interpreter, 1, width, height);
+
+        String key = width + "x" + height;
+        InferenceBuffers resolutionBuffers = buffersByResolution.get(key);
+        if (resolutionBuffers == null) {
+            resolutionBuffers = createBuffers(interpreter, outputShape);
+            buffersByResolution.put(key, resolutionBuffers);
+        }
+        buffers = resolutionBuffers;
+        decoder.setNumSlots(outputShape[2]);
+        modelInputWidth = width;
+        modelInputHeight = height;
+        Log.d(TAG, "Model input shape 1x" + key + ", " + outputShape[2] + " prediction slots.");
+    }
+
+    /**
+     * Resizes the interpreter input to [batch, height, width, channels] if it differs, re-allocating its tensors.
+     *
+     * @return The output shape, checked to be [batch, 4 + NUM_CLASSES, slots].
+     */
+    private int[] resizeInterpreter(Interpreter target, int batch, int width, int height) {
+        int[] currentShape = target.getInputTensor(0).shape();
+        if (currentShape[0] != batch || currentShape[1] != height || currentShape[2] != width) {
+            target.resizeInput(0, new int[]{batch, height, width, modelInputChannels});
+            target.allocateTensors();
+        }
+
+        int[] outputShape = target.getOutputTensor(0).shape();
+        if (outputShape.length != 3 || outputShape[0] != batch || outputShape[1] != (4 + NUM_CLASSES)) {
+            throw new IllegalStateException("Expected output shape [" + batch + ", " + (4 + NUM_CLASSES) + ", slots] but got " + Arrays.toString(outputShape));
+        }
+        return outputShape;
+    }
+
+    private InferenceBuffers createBuffers(Interpreter target, int[] outputShape) {
+        InferenceBuffers arena = new InferenceBuffers(target.getInputTensor(0).shape(), isInputFloat ? 4 : 1, outputShape, isOutputQuantized ? 1 : 4);
+        if (!isInputFloat) {
+            arena.setInputQuantization(inputScale, inputZeroPoint, isInputSigned);
+        }
+        return arena;
+    }
+
+    /**
+     * Runs the full inference path (pack, run, decode, NMS) on a blank frame so tensor allocation and
+     * first-run kernel setup happen now instead of on the first real frame.
+     */
+    public synchronized void warmUp(int runs) {
+        if (interpreter == null) {
+            throw new IllegalStateException("LiteRT interpreter not initialized. Check if it loaded correctly.");
+        }
+        Mat blankFrame = Mat.zeros(modelInputHeight, modelInputWidth, CvType.CV_8UC4);
+        try {
+            for (int i = 0; i < runs; i++) {
+                long start = System.nanoTime();
+                interpreter.run(buffers.fillInputFromMat(blankFrame), buffers.prepareOutput());
+                decodeOutput(buffers, 0, buffers.getCandidates());
+                nms.run(buffers.getCandidates());
+                Log.d(TAG, "Warm-up inference " + (i + 1) + "/" + runs + ": " + ((System.nanoTime() - start) / 1000000.0) + " ms");
+            }
+        } finally {
+            blankFrame.release();
+        }
+    }
+
+    /**
+     * Records preprocess, interpreter.run, decode and NMS times of every later frame; null turns it off.
+     */
+    public synchronized void setMetrics(MissionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return The execution settings of the active interpreter (the auto-tune winner when auto-tuning).
+     */
+    public InterpreterConfig getInterpreterConfig() {
+        return interpreterConfig;
+    }
+
     private MappedByteBuffer loadModelFileFromAssets(Context context, String modelAssetName) throws IOException {
         AssetManager assetManager = context.getAssets();
-        try (FileInputStream fis = new FileInputStream(assetManager.openFd(modelAssetName).getFileDescriptor())) {
+        // One descriptor for the channel, offset and length; the mapping stays valid after it is closed
+        try (AssetFileDescriptor fileDescriptor = assetManager.openFd(modelAssetName);
+             FileInputStream fis = new FileInputStream(fileDescriptor.getFileDescriptor())) {
             FileChannel fileChannel = fis.getChannel();
-            long startOffset = assetManager.openFd(modelAssetName).getStartOffset();
-            long declaredLength = assetManager.openFd(modelAssetName).getDeclaredLength();
-            return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY, fileDescriptor.getStartOffset(), fileDescriptor.getDeclaredLength());
         }
     }
 
@@ -167,147 +452,262 @@ public class RobotVisionProcessor {
         return labels;
     }
 
+    /**
+     * Crops the calibrated image with {@link PanelCropper} and runs detection on the crop.
+     * Callers that also need the crop (e.g. to save it) should crop once and use
+     * {@link #processImageAndGetResult(PanelCropper.CropResult)} instead.
+     */
     public List<DetectionResult> processImageAndGetResult(Bitmap image) {
-        if (interpreter == null) {
-            throw new IllegalStateException("LiteRT interpreter not initialized. Check if it loaded correctly.");
-        }
         if (image == null) {
             Log.e(TAG, "Input image is null.");
             return new ArrayList<>();
         }
 
-        // === START: Integration of cropImage method ===
-        // 1. Crop the input image using the OpenCV contour-based method.
-        // If it fails to find a 4-sided contour, it will return the original image.
-        // Note: This cropImage method will operate on the entire 'image'
-        // and does not use the specific bounding box from individual detections.
-        Bitmap croppedImage = cropImage(image);
-        Log.d(TAG, "Image cropping complete. Pre-crop size: " + image.getWidth() + "x" + image.getHeight() +
-                ". Post-crop size: " + croppedImage.getWidth() + "x" + croppedImage.getHeight());
-
-
-        // 2. Resize the (potentially cropped) image to the model's required input dimensions.
-        Bitmap resizedImage = Bitmap.createScaledBitmap(croppedImage, modelInputWidth, modelInputHeight, true);
-
-        // 3. Recycle the intermediate cropped bitmap if it was newly created (i.e., not the same as the input image)
-        if (croppedImage != image) { // Only recycle if it's a new bitmap, not the input one
-            croppedImage.recycle();
+        Mat frame = new Mat();
+        PanelCropper.CropResult crop = null;
+        try {
+            Utils.bitmapToMat(image, frame);
+            crop = PanelCropper.crop(frame);
+            return processImageAndGetResult(crop);
+        } finally {
+            if (crop != null) crop.release();
+            frame.release();
         }
-        // === END: Integration of cropImage method ===
-
-        int numBytesPerChannel = isInputFloat ? 4 : 1;
-        ByteBuffer inputBuffer = ByteBuffer.allocateDirect(
-                modelInputWidth * modelInputHeight * modelInputChannels * numBytesPerChannel
-        );
-        inputBuffer.order(ByteOrder.nativeOrder());
-
-        int[] pixels = new int[modelInputWidth * modelInputHeight];
-        resizedImage.getPixels(pixels, 0, modelInputWidth, 0, 0, modelInputWidth, modelInputHeight);
+    }
 
-        for (int pixel : pixels) {
-            int red = (pixel >> 16) & 0xFF;
-            int green = (pixel >> 8) & 0xFF;
-            int blue = pixel & 0xFF;
+    /**
+     * Runs detection on the crop at the given square input resolution, switching the interpreter first if needed.
+     *
+     * @param inputSize Input side in pixels, a multiple of 32 (e.g. 320, 480 or 640).
+     */
+    public synchronized List<DetectionResult> processImageAndGetResult(PanelCropper.CropResult crop, int inputSize) {
+        setInputResolution(inputSize, inputSize);
+        return processImageAndGetResult(crop);
+    }
 
-            if (isInputFloat) {
-                inputBuffer.putFloat(red / 255.0f);
-                inputBuffer.putFloat(green / 255.0f);
-                inputBuffer.putFloat(blue / 255.0f);
-            } else {
-                inputBuffer.put((byte) red);
-                inputBuffer.put((byte) green);
-                inputBuffer.put((byte) blue);
-            }
+    /**
+     * Runs detection on the output of the shared crop stage.
+     *
+     * Synchronized: the interpreter and buffer arena serve one frame at a time.
+     *
+     * @param crop Crop of the calibrated frame. Not released by this method.
+     */
+    public synchronized List<DetectionResult> processImageAndGetResult(PanelCropper.CropResult crop) {
+        if (interpreter == null) {
+            throw new IllegalStateException("LiteRT interpreter not initialized. Check if it loaded correctly.");
         }
-        inputBuffer.rewind();
-
-        int outputArraySize = (FIRST_CLASS_PROB_ROW_INDEX + NUM_CLASSES) * NUM_PREDICTION_SLOTS;
-        ByteBuffer outputBuffer = ByteBuffer.allocateDirect(outputArraySize * 4);
-        outputBuffer.order(ByteOrder.nativeOrder());
-
-        interpreter.run(inputBuffer, outputBuffer);
+        if (crop == null || crop.cropped.empty()) {
+            Log.e(TAG, "Input crop is null or empty.");
+            return new ArrayList<>();
+        }
+        if (!crop.hasQuad()) {
+            Log.w(TAG, "No 4-point panel contour found. Running detection on the whole frame.");
+        }
+        // Resize and normalize the (potentially cropped) image straight into the input tensor
+        long start = System.nanoTime();
+        ByteBuffer inputBuffer = buffers.fillInputFromMat(crop.cropped);
+        record(MissionMetrics.Stage.PREPROCESS, start);
 
-        outputBuffer.rewind();
-        FloatBuffer floatOutputBuffer = outputBuffer.asFloatBuffer();
-        float[] rawOutput = new float[outputArraySize];
-        floatOutputBuffer.get(rawOutput);
+        return detect(inputBuffer);
+    }
 
-        List<DetectionResult> detectedObjects = new ArrayList<>();
+    /**
+     * Runs detection on the panel quad warped straight into the input tensor (see {@link InferenceBuffers#fillInputFromQuad}):
+     * one perspective warp replaces the mask, crop and resize of {@link #processImageAndGetResult(PanelCropper.CropResult)}.
+     * Without a quad the whole frame is resized instead.
+     *
+     * Boxes are normalized to the rectified panel (or to the frame when there is no quad).
+     *
+     * @param frame         Calibrated RGBA frame. Not released by this method.
+     * @param quad          Panel quad in frame coordinates, or null. Not released by this method.
+     * @param inputImageOut If not null, receives the RGBA image the model saw (input size), e.g. for saving.
+     */
+    public synchronized List<DetectionResult> processPanelQuad(Mat frame, MatOfPoint quad, Mat inputImageOut) {
+        if (interpreter == null) {
+            throw new IllegalStateException("LiteRT interpreter not initialized. Check if it loaded correctly.");
+        }
+        if (frame == null || frame.empty()) {
+            Log.e(TAG, "Input frame is null or empty.");
+            return new ArrayList<>();
+        }
+        long start = System.nanoTime();
+        ByteBuffer inputBuffer;
+        if (quad != null) {
+            inputBuffer = buffers.fillInputFromQuad(frame, PanelCropper.orderCorners(quad.toArray()));
+        } else {
+            Log.w(TAG, "No 4-point panel contour found. Running detection on the whole frame.");
+            inputBuffer = buffers.fillInputFromMat(frame);
+        }
+        record(MissionMetrics.Stage.PREPROCESS, start);
+        if (inputImageOut != null) {
+            buffers.copyLastInputImage(inputImageOut);
+        }
 
-        for (int i = 0; i < NUM_PREDICTION_SLOTS; i++) {
-            float x_center = rawOutput[X_CENTER_COORD_ROW_INDEX * NUM_PREDICTION_SLOTS + i];
-            float y_center = rawOutput[Y_CENTER_COORD_ROW_INDEX * NUM_PREDICTION_SLOTS + i];
-            float width = rawOutput[WIDTH_COORD_ROW_INDEX * NUM_PREDICTION_SLOTS + i];
-            float height = rawOutput[HEIGHT_COORD_ROW_INDEX * NUM_PREDICTION_SLOTS + i];
+        return detect(inputBuffer);
+    }
 
-            float x_min = x_center - (width / 2.0f);
-            float y_min = y_center - (height / 2.0f);
-            float x_max = x_center + (width / 2.0f);
-            float y_max = y_center + (height / 2.0f);
+    /**
+     * Runs the interpreter on a packed single-entry input, then decodes and filters the output.
+     */
+    private List<DetectionResult> detect(ByteBuffer inputBuffer) {
+        runInterpreter(interpreter, buffers, inputBuffer);
 
-            x_min = Math.max(0.0f, x_min);
-            y_min = Math.max(0.0f, y_min);
-            x_max = Math.min(1.0f, x_max);
-            y_max = Math.min(1.0f, y_max);
+        DetectionCandidates candidates = buffers.getCandidates();
+        decodeOutput(buffers, 0, candidates);
+        if (decoder.getLastInvalidBoxCount() > 0) {
+            Log.w(TAG, "Skipped " + decoder.getLastInvalidBoxCount() + " prediction slots with invalid bounding box dimensions after conversion.");
+        }
 
-            float maxClassProb = -1.0f;
-            int predictedClassId = -1;
+        return runNmsAndBuildResults(candidates);
+    }
 
-            for (int k = 0; k < NUM_CLASSES; k++) {
-                float classProb = rawOutput[(FIRST_CLASS_PROB_ROW_INDEX + k) * NUM_PREDICTION_SLOTS + i];
+    /**
+     * Tiled detection for full-resolution frames: the frame is split into the grid's overlapping tiles,
+     * all tiles go through a single interpreter.run as one batch, and their boxes are mapped back to the frame
+     * and merged with one cross-tile NMS pass. The batch runs on a separate interpreter, which costs a second set of
+     * tensors but leaves the single-frame interpreter at its shape. Falls back to one run per tile if the model rejects
+     * a batch dimension.
+     *
+     * @param frame Calibrated RGBA frame. Not released by this method.
+     * @return Detections with boxes normalized to the whole frame (not to a crop).
+     */
+    public synchronized List<DetectionResult> processTiled(Mat frame, TileGrid grid) {
+        if (interpreter == null) {
+            throw new IllegalStateException("LiteRT interpreter not initialized. Check if it loaded correctly.");
+        }
+        if (frame == null || frame.empty()) {
+            Log.e(TAG, "Input frame is null or empty.");
+            return new ArrayList<>();
+        }
 
-                if (classProb > maxClassProb) {
-                    maxClassProb = classProb;
-                    predictedClassId = k;
+        List<Rect> tiles = grid.layout(frame.cols(), frame.rows());
+        int tileCount = tiles.size();
+        boolean batched = tileCount > 1 && useBatch(tileCount);
+
+        DetectionCandidates tileCandidates = buffers.getCandidates();
+        mergedTileCandidates.ensureCapacity(tileCount * decoder.getNumSlots());
+        int invalidBoxes = 0;
+
+        if (batched) {
+            ByteBuffer inputBuffer = null;
+            long start = System.nanoTime();
+            for (int t = 0; t < tileCount; t++) {
+                Mat tile = frame.submat(tiles.get(t));
+                try {
+                    inputBuffer = batchBuffers.fillInputFromMat(tile, t);
+                } finally {
+                    tile.release();
+                }
+            }
+            record(MissionMetrics.Stage.PREPROCESS, start);
+            runInterpreter(batchInterpreter, batchBuffers, inputBuffer);
+            for (int t = 0; t < tileCount; t++) {
+                decodeOutput(batchBuffers, t, tileCandidates);
+                invalidBoxes += decoder.getLastInvalidBoxCount();
+                appendTileCandidates(tileCandidates, tiles.get(t), frame.cols(), frame.rows(), mergedTileCandidates);
+            }
+        } else {
+            for (int t = 0; t < tileCount; t++) {
+                Mat tile = frame.submat(tiles.get(t));
+                ByteBuffer inputBuffer;
+                try {
+                    long start = System.nanoTime();
+                    inputBuffer = buffers.fillInputFromMat(tile);
+                    record(MissionMetrics.Stage.PREPROCESS, start);
+                } finally {
+                    tile.release();
                 }
+                runInterpreter(interpreter, buffers, inputBuffer);
+                decodeOutput(buffers, 0, tileCandidates);
+                invalidBoxes += decoder.getLastInvalidBoxCount();
+                appendTileCandidates(tileCandidates, tiles.get(t), frame.cols(), frame.rows(), mergedTileCandidates);
             }
+        }
+        if (invalidBoxes > 0) {
+            Log.w(TAG, "Skipped " + invalidBoxes + " prediction slots with invalid bounding box dimensions after conversion.");
+        }
+        Log.d(TAG, "Tiled inference: " + tileCount + " tiles (" + (batched ? "batched" : "sequential") + "), " + mergedTileCandidates.count + " candidates before cross-tile NMS.");
 
-            float confidence = maxClassProb;
+        return runNmsAndBuildResults(mergedTileCandidates);
+    }
 
-            if (confidence < CONFIDENCE_THRESHOLD) {
-                continue;
+    /**
+     * Prepares the batch interpreter for {@code tileCount} entries at the current resolution, building it on first use
+     * with the same config as the single-frame interpreter. It is only resized again when the tile count or the
+     * resolution changes.
+     *
+     * @return false (and remembers it) if the model cannot be resized to that batch.
+     */
+    private boolean useBatch(int tileCount) {
+        if (!batchedTilesSupported) {
+            return false;
+        }
+        try {
+            if (batchInterpreter == null) {
+                batchInterpreter = new Interpreter(modelBuffer, interpreterConfig.toOptions());
             }
-
-            if (x_min >= x_max || y_min >= y_max) {
-                Log.w(TAG, "Invalid bounding box dimensions after conversion for prediction slot " + i + ": [" + x_min + ", " + y_min + ", " + x_max + ", " + y_max + "]. Skipping.");
-                continue;
+            int[] outputShape = resizeInterpreter(batchInterpreter, tileCount, modelInputWidth, modelInputHeight);
+            if (outputShape[2] != decoder.getNumSlots()) {
+                throw new IllegalStateException("Batched output has " + outputShape[2] + " prediction slots, expected " + decoder.getNumSlots());
             }
-
-            if (predictedClassId != -1 && maxClassProb > 0.0f) {
-                String label = (labels != null && predictedClassId < labels.size()) ? labels.get(predictedClassId) : "Unknown_Class_" + predictedClassId;
-                detectedObjects.add(new DetectionResult(x_min, y_min, x_max, y_max,
-                        confidence, predictedClassId, maxClassProb, label));
+            String key = tileCount + "x" + modelInputWidth + "x" + modelInputHeight;
+            if (!key.equals(batchShapeKey)) {
+                if (batchBuffers != null) {
+                    batchBuffers.release();
+                }
+                batchBuffers = createBuffers(batchInterpreter, outputShape);
+                batchShapeKey = key;
+                Log.d(TAG, "Batch interpreter input shape " + key + ".");
             }
+            return true;
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            Log.w(TAG, "Model does not accept a batch of " + tileCount + " (" + e.getMessage() + "). Running tiles one at a time.");
+            batchedTilesSupported = false;
+            releaseBatchInterpreter();
+            return false;
         }
+    }
 
-        Collections.sort(detectedObjects, new Comparator<DetectionResult>() {
-            @Override
-            public int compare(DetectionResult d1, DetectionResult d2) {
-                return Float.compare(d2.confidence, d1.confidence);
-            }
-        });
-
-        List<DetectionResult> nmsDetections = new ArrayList<>();
-        boolean[] isSuppressed = new boolean[detectedObjects.size()];
-
-        for (int i = 0; i < detectedObjects.size(); i++) {
-            if (isSuppressed[i]) continue;
-
-            DetectionResult currentDetection = detectedObjects.get(i);
-            nmsDetections.add(currentDetection);
-
-            for (int j = i + 1; j < detectedObjects.size(); j++) {
-                if (isSuppressed[j]) continue;
+    private void releaseBatchInterpreter() {
+        if (batchInterpreter != null) {
+            batchInterpreter.close();
+            batchInterpreter = null;
+        }
+        if (batchBuffers != null) {
+            batchBuffers.release();
+            batchBuffers = null;
+        }
+        batchShapeKey = null;
+    }
 
-                DetectionResult otherDetection = detectedObjects.get(j);
+    /**
+     * Maps boxes normalized to a tile into boxes normalized to the whole frame and appends them.
+     */
+    private static void appendTileCandidates(DetectionCandidates tile, Rect tileRect, int frameWidth, int frameHeight, DetectionCandidates merged) {
+        float scaleX = (float) tileRect.width / frameWidth;
+        float scaleY = (float) tileRect.height / frameHeight;
+        float offsetX = (float) tileRect.x / frameWidth;
+        float offsetY = (float) tileRect.y / frameHeight;
+        for (int i = 0; i < tile.count; i++) {
+            merged.add(offsetX + tile.xmin[i] * scaleX, offsetY + tile.ymin[i] * scaleY,
+                    offsetX + tile.xmax[i] * scaleX, offsetY + tile.ymax[i] * scaleY,
+                    tile.score[i], tile.classId[i], tile.slot[i]);
+        }
+    }
 
-                if (currentDetection.classId == otherDetection.classId) {
-                    float iou = currentDetection.calculateIoU(otherDetection);
-                    if (iou > IOU_THRESHOLD) {
-                        isSuppressed[j] = true;
-                    }
-                }
-            }
+    private List<DetectionResult> runNmsAndBuildResults(DetectionCandidates candidates) {
+        long start = System.nanoTime();
+        int keptCount = nms.run(candidates);
+        record(MissionMetrics.Stage.NMS, start);
+        int[] kept = nms.getKept();
+
+        List<DetectionResult> nmsDetections = new ArrayList<>(keptCount);
+        for (int k = 0; k < keptCount; k++) {
+            int i = kept[k];
+            int predictedClassId = candidates.classId[i];
+            String label = (labels != null && predictedClassId < labels.size()) ? labels.get(predictedClassId) : "Unknown_Class_" + predictedClassId;
+            nmsDetections.add(new DetectionResult(candidates.xmin[i], candidates.ymin[i], candidates.xmax[i], candidates.ymax[i],
+                    candidates.score[i], predictedClassId, candidates.score[i], label));
         }
 
         if (nmsDetections.isEmpty()) {
@@ -318,206 +718,40 @@ public class RobotVisionProcessor {
             }
         }
 
-        // Recycle resizedImage
-        if (resizedImage != null) {
-            resizedImage.recycle();
-        }
-
         return nmsDetections;
     }
 
-    /**
-     * Finds a 4-point contour in the image and crops to its bounding box.
-     * This is useful for isolating a document or screen from its background.
-     *
-     * @param inputBitmap The original Bitmap image.
-     * @return A new, cropped Bitmap. If no suitable contour is found, returns the original inputBitmap.
-     */
-    private static Bitmap cropImage(Bitmap inputBitmap) {
-        Mat img = null;
-        Mat gray = null;
-        Mat thresh = null;
-        Mat hsv = null;
-        Mat mask = null;
-        Mat edged = null;
-        Mat hierarchy = null;
-        MatOfPoint2f approxCurve = null;
-        MatOfPoint2f contour2f = null;
-        MatOfPoint location = null;
-        Mat polyMask = null;
-        Mat sampleImage = null;
-        Mat croppedMat = null;
-        Bitmap outputBitmap = null;
-
-        List<MatOfPoint> contours = new ArrayList<>();
-
-        try {
-            img = new Mat();
-            Utils.bitmapToMat(inputBitmap, img);
-
-            // Convert to grayscale
-            gray = new Mat();
-            Imgproc.cvtColor(img, gray, Imgproc.COLOR_BGR2GRAY);
-
-            // --- Improvement 1: Adjust Adaptive Thresholding Parameters ---
-            // Increased block size and C value slightly for potentially better noise reduction and edge detection
-            thresh = new Mat();
-            Imgproc.adaptiveThreshold(gray, thresh, 255,
-                    Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C,
-                    Imgproc.THRESH_BINARY, 15, 5); // Changed from 11, 2 to 15, 5
-
-            // --- Improvement 2: Adjust HSV White Mask ---
-            hsv = new Mat();
-            Imgproc.cvtColor(img, hsv, Imgproc.COLOR_BGR2HSV);
-
-            // Loosened the white mask slightly to catch more variations of white/grey
-            // Increased S upper bound, slightly lowered V lower bound
-            Scalar lowerWhite = new Scalar(0, 0, 150); // Changed from 160
-            Scalar upperWhite = new Scalar(180, 40, 255); // Changed from 30
-            mask = new Mat();
-            Core.inRange(hsv, lowerWhite, upperWhite, mask);
-
-            // --- Improvement 3: Consider adding Canny Edge Detector for more robust edges ---
-            // You can uncomment and try this block if the above changes are not enough.
-            // This might make the edges cleaner for contour detection.
-            /*
-            Mat cannyEdges = new Mat();
-            Imgproc.Canny(gray, cannyEdges, 50, 150); // Tweak min/max thresholds as needed
-            Core.bitwise_and(thresh, cannyEdges, edged); // Combine threshold with Canny edges
-            */
-            // For now, sticking to the original combination:
-            edged = new Mat();
-            Core.bitwise_and(thresh, mask, edged);
-
-
-            // Find contours
-            hierarchy = new Mat();
-            Imgproc.findContours(edged.clone(), contours, hierarchy,
-                    Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
-
-            // Release intermediate Mats early
-            gray.release();
-            thresh.release();
-            hsv.release();
-            mask.release();
-            edged.release();
-            hierarchy.release();
-            // If you use cannyEdges, release it here too.
-
-            if (contours.isEmpty()) {
-                Log.w(TAG, "cropImage: No contours found. Returning original image.");
-                img.release();
-                return inputBitmap;
-            }
-
-            // Sort contours by area
-            Collections.sort(contours, new Comparator<MatOfPoint>() {
-                @Override
-                public int compare(MatOfPoint a, MatOfPoint b) {
-                    return Double.compare(Imgproc.contourArea(b), Imgproc.contourArea(a));
-                }
-            });
-
-            // Find a 4-point contour
-            approxCurve = new MatOfPoint2f();
-            location = null;
-
-            for (MatOfPoint contour : contours) {
-                MatOfPoint2f currentContour2f = new MatOfPoint2f(contour.toArray());
-
-                // --- Improvement 4: Adjust epsilon in approxPolyDP ---
-                // Epsilon scaled by the larger of width/height for more consistent approximation
-                double arcLength = Imgproc.arcLength(currentContour2f, true);
-                double epsilon = 0.02 * arcLength; // Increased from 0.01 to 0.02 for potentially smoother approximation
-
-                Imgproc.approxPolyDP(currentContour2f, approxCurve, epsilon, true);
-
-                if (approxCurve.total() == 4 && Imgproc.isContourConvex(new MatOfPoint(approxCurve.toArray()))) {
-                    location = new MatOfPoint(approxCurve.toArray());
-                    currentContour2f.release();
-                    break;
-                }
-                currentContour2f.release();
-            }
-
-            // Release all MatOfPoint objects in contours list
-            for (MatOfPoint contour : contours) {
-                contour.release();
-            }
-
-            if (location == null) {
-                Log.w(TAG, "cropImage: Could not find a suitable 4-point convex contour. Returning original image.");
-                if (approxCurve != null) approxCurve.release();
-                img.release();
-                return inputBitmap;
-            }
-
-            // Create mask from polygon
-            polyMask = Mat.zeros(img.size(), CvType.CV_8UC1);
-            List<MatOfPoint> list = new ArrayList<>();
-            list.add(location);
-            Imgproc.fillPoly(polyMask, list, new Scalar(255));
-
-            // Apply mask to image
-            sampleImage = new Mat();
-            Core.bitwise_and(img, img, sampleImage, polyMask);
-
-            // Crop using bounding box of polygon
-            org.opencv.core.Rect roi = Imgproc.boundingRect(location);
-
-            // --- Improvement 5: Add a small padding to the bounding box and ensure validity ---
-            int padding = 10; // Increased padding from 5 to 10
-            int xMin = Math.max(0, roi.x - padding);
-            int yMin = Math.max(0, roi.y - padding);
-            int xMax = Math.min(img.cols(), roi.x + roi.width + padding);
-            int yMax = Math.min(img.rows(), roi.y + roi.height + padding);
-
-            if (xMax <= xMin || yMax <= yMin) {
-                Log.w(TAG, "Invalid ROI for cropping (width or height is zero/negative) after padding. Returning original image.");
-                if (approxCurve != null) approxCurve.release();
-                if (location != null) location.release();
-                if (polyMask != null) polyMask.release();
-                if (sampleImage != null) sampleImage.release();
-                img.release();
-                return inputBitmap;
-            }
+    private void runInterpreter(Interpreter target, InferenceBuffers arena, ByteBuffer inputBuffer) {
+        long start = System.nanoTime();
+        target.run(inputBuffer, arena.prepareOutput());
+        record(MissionMetrics.Stage.INFERENCE, start);
+    }
 
-            org.opencv.core.Rect safeRoi = new org.opencv.core.Rect(xMin, yMin, xMax - xMin, yMax - yMin);
-            croppedMat = new Mat(sampleImage, safeRoi);
-            outputBitmap = Bitmap.createBitmap(croppedMat.cols(), croppedMat.rows(), inputBitmap.getConfig());
-            Utils.matToBitmap(croppedMat, outputBitmap);
+    private void decodeOutput(InferenceBuffers arena, int batchIndex, DetectionCandidates candidates) {
+        long start = System.nanoTime();
+        if (isOutputQuantized) {
+            decoder.decodeQuantized(arena.getOutputBytes(batchIndex), isOutputSigned, outputScale, outputZeroPoint, CONFIDENCE_THRESHOLD, candidates);
+        } else {
+            decoder.decode(arena.getOutputFloats(batchIndex), CONFIDENCE_THRESHOLD, candidates);
+        }
+        record(MissionMetrics.Stage.DECODE, start);
+    }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Exception in cropImage: " + e.getMessage(), e);
-            // In case of an error, return the original bitmap.
-            // If img is not null, convert it. Otherwise, return the original inputBitmap directly.
-            if (img != null) {
-                outputBitmap = Bitmap.createBitmap(img.width(), img.height(), inputBitmap.getConfig());
-                Utils.matToBitmap(img, outputBitmap);
-            } else {
-                return inputBitmap; // Fallback to original inputBitmap
-            }
-            return outputBitmap;
-        } finally {
-            // Release all Mats created in this method to prevent memory leaks
-            if (img != null) img.release();
-            // gray, thresh, hsv, mask, edged, hierarchy are released early
-            if (approxCurve != null) approxCurve.release();
-            if (location != null) location.release();
-            if (polyMask != null) polyMask.release();
-            if (sampleImage != null) sampleImage.release();
-            if (croppedMat != null) croppedMat.release();
-
-            // All MatOfPoint in contours list are released within the loop or after
-            // The list itself doesn't need to be released
-        }
-        return outputBitmap;
+    private void record(MissionMetrics.Stage stage, long startNanos) {
+        if (metrics != null) {
+            metrics.record(stage, startNanos);
+        }
     }
 
-    public void close() {
+    public synchronized void close() {
         if (interpreter != null) {
             interpreter.close();
             Log.d(TAG, "LiteRT interpreter closed.");
         }
+        releaseBatchInterpreter();
+        for (InferenceBuffers resolutionBuffers : buffersByResolution.values()) {
+            resolutionBuffers.release();
+        }
+        buffersByResolution.clear();
     }
 }
\ No newline at end of file
@@ -0,0 +1,64 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.opencv.core.Rect;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Overlapping tile layout for tiled inference on full-resolution frames.
+ *
+ * A frame is split into {@code cols x rows} equal tiles; neighbouring tiles share {@code overlap} of a tile side,
+ * so an item cut by one tile border lies whole inside the next tile. Optionally the whole frame is added as the
+ * first tile, so large items that span several tiles are still seen in one piece.
+ */
+public class TileGrid {
+
+    public final int cols;
+    public final int rows;
+    public final float overlap;
+    public final boolean includeFullFrame;
+
+    /**
+     * @param overlap Fraction of a tile side shared with the neighbouring tile, in [0, 0.5).
+     */
+    public TileGrid(int cols, int rows, float overlap, boolean includeFullFrame) {
+        if (cols < 1 || rows < 1) {
+            throw new IllegalArgumentException("Tile grid needs at least 1x1 tiles, got " + cols + "x" + rows);
+        }
+        if (overlap < 0.0f || overlap >= 0.5f) {
+            throw new IllegalArgumentException("Tile overlap must be in [0, 0.5), got " + overlap);
+        }
+        this.cols = cols;
+        this.rows = rows;
+        this.overlap = overlap;
+        this.includeFullFrame = includeFullFrame;
+    }
+
+    public int tileCount() {
+        return cols * rows + (includeFullFrame ? 1 : 0);
+    }
+
+    /**
+     * @return Tile rectangles in frame pixels, row-major, preceded by the full frame if enabled.
+     */
+    public List<Rect> layout(int frameWidth, int frameHeight) {
+        List<Rect> tiles = new ArrayList<>(tileCount());
+        if (includeFullFrame) {
+            tiles.add(new Rect(0, 0, frameWidth, frameHeight));
+        }
+        // cols * tile - (cols - 1) * overlap * tile = frame width
+        int tileWidth = (int) Math.ceil(frameWidth / (cols - (cols - 1) * overlap));
+        int tileHeight = (int) Math.ceil(frameHeight / (rows - (rows - 1) * overlap));
+        tileWidth = Math.min(tileWidth, frameWidth);
+        tileHeight = Math.min(tileHeight, frameHeight);
+        for (int r = 0; r < rows; r++) {
+            int y = rows == 1 ? 0 : Math.round((float) r * (frameHeight - tileHeight) / (rows - 1));
+            for (int c = 0; c < cols; c++) {
+                int x = cols == 1 ? 0 : Math.round((float) c * (frameWidth - tileWidth) / (cols - 1));
+                tiles.add(new Rect(x, y, tileWidth, tileHeight));
+            }
+        }
+        return tiles;
+    }
+}
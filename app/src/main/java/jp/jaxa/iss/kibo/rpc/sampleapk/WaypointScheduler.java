@@ -0,0 +1,76 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides after each frame whether the remaining waypoints of an area are still needed.
+ *
+ * An area is resolved once its evidence holds both a landmark and a treasure that were each seen with at least
+ * {@link #EXIT_CONFIDENCE}, and each beats the runner-up of its kind by {@link #EXIT_MARGIN}. A close second
+ * class means the views disagree, so the remaining waypoints are still flown.
+ */
+public class WaypointScheduler {
+
+    static final float EXIT_CONFIDENCE = 0.85f;
+    /** Required gap between the best class's mean confidence and the runner-up's max confidence. */
+    static final float EXIT_MARGIN = 0.25f;
+
+    private final Set<String> landmarkLabels;
+    private final Set<String> treasureLabels;
+    private String lastReason = "";
+
+    public WaypointScheduler(Collection<String> landmarkLabels, Collection<String> treasureLabels) {
+        this.landmarkLabels = new HashSet<>(landmarkLabels);
+        this.treasureLabels = new HashSet<>(treasureLabels);
+    }
+
+    /**
+     * @return true if the frames seen so far already give a clear landmark and treasure for the area.
+     */
+    public boolean canSkipRemaining(AreaEvidence evidence) {
+        List<AreaEvidence.ClassEvidence> ranked = evidence.ranked();
+        String landmark = clearWinner(ranked, landmarkLabels);
+        String treasure = clearWinner(ranked, treasureLabels);
+        if (landmark == null || treasure == null) {
+            lastReason = "unresolved after " + evidence.getFramesObserved() + " frame(s) (landmark: "
+                    + (landmark == null ? "unclear" : landmark) + ", treasure: " + (treasure == null ? "unclear" : treasure) + ")";
+            return false;
+        }
+        lastReason = "resolved after " + evidence.getFramesObserved() + " frame(s): landmark " + landmark + ", treasure " + treasure;
+        return true;
+    }
+
+    /**
+     * @return Human-readable reason of the last {@link #canSkipRemaining} decision, for logging.
+     */
+    public String getLastReason() {
+        return lastReason;
+    }
+
+    private static String clearWinner(List<AreaEvidence.ClassEvidence> ranked, Set<String> kind) {
+        AreaEvidence.ClassEvidence best = null;
+        AreaEvidence.ClassEvidence runnerUp = null;
+        // ranked is ordered by vote, so the first two of this kind are the best and the runner-up
+        for (AreaEvidence.ClassEvidence evidence : ranked) {
+            if (!kind.contains(evidence.label)) {
+                continue;
+            }
+            if (best == null) {
+                best = evidence;
+            } else {
+                runnerUp = evidence;
+                break;
+            }
+        }
+        if (best == null || best.maxConfidence < EXIT_CONFIDENCE) {
+            return null;
+        }
+        if (runnerUp != null && best.meanConfidence() - runnerUp.maxConfidence < EXIT_MARGIN) {
+            return null;
+        }
+        return best.label;
+    }
+}
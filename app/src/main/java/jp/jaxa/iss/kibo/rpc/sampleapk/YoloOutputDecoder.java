@@ -0,0 +1,195 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Decodes the YOLO output tensor laid out as [1, 4 + numClasses, numSlots] (row-major).
+ *
+ * The class rows are scanned first, each one contiguously, to build a per-slot max/argmax.
+ * Box geometry is only read for slots whose best class clears the confidence threshold,
+ * so most of the 4725 slots are rejected after touching nothing but the class rows.
+ * Reads straight from the interpreter's FloatBuffer view; no float[] copy is made.
+ * Quantized (int8/uint8) outputs are decoded by {@link #decodeQuantized}, which compares raw values
+ * against a quantized threshold and dequantizes only the surviving slots.
+ */
+class YoloOutputDecoder {
+
+    private static final int X_CENTER_ROW = 0;
+    private static final int Y_CENTER_ROW = 1;
+    private static final int WIDTH_ROW = 2;
+    private static final int HEIGHT_ROW = 3;
+    private static final int FIRST_CLASS_ROW = 4;
+
+    private final int numClasses;
+    private int numSlots;
+
+    // Per-slot scratch, reused across frames
+    private float[] slotMaxProb;
+    private int[] slotClassId;
+    private int[] slotMaxQuantized;
+
+    private int lastInvalidBoxCount;
+
+    YoloOutputDecoder(int numClasses, int numSlots) {
+        this.numClasses = numClasses;
+        setNumSlots(numSlots);
+    }
+
+    void setNumSlots(int numSlots) {
+        this.numSlots = numSlots;
+        if (slotMaxProb == null || slotMaxProb.length < numSlots) {
+            slotMaxProb = new float[numSlots];
+            slotClassId = new int[numSlots];
+            slotMaxQuantized = null;
+        }
+    }
+
+    int getNumSlots() {
+        return numSlots;
+    }
+
+    int getNumClasses() {
+        return numClasses;
+    }
+
+    /**
+     * Number of slots above threshold whose box collapsed to zero area after clamping, from the last decode.
+     */
+    int getLastInvalidBoxCount() {
+        return lastInvalidBoxCount;
+    }
+
+    /**
+     * Decodes all slots whose best class probability is at least {@code confidenceThreshold}.
+     *
+     * @param output              Output tensor view; absolute reads are used, so its position is not changed.
+     * @param confidenceThreshold Minimum class probability for a slot to be kept.
+     * @param out                 Destination; cleared before decoding.
+     * @return Number of candidates written to {@code out}.
+     */
+    int decode(FloatBuffer output, float confidenceThreshold, DetectionCandidates out) {
+        out.ensureCapacity(numSlots);
+        lastInvalidBoxCount = 0;
+
+        final int slots = numSlots;
+        final float[] maxProb = slotMaxProb;
+        final int[] maxClass = slotClassId;
+
+        // Pass 1: class rows in memory order -> per-slot max/argmax
+        int base = FIRST_CLASS_ROW * slots;
+        for (int i = 0; i < slots; i++) {
+            maxProb[i] = output.get(base + i);
+            maxClass[i] = 0;
+        }
+        for (int k = 1; k < numClasses; k++) {
+            base = (FIRST_CLASS_ROW + k) * slots;
+            for (int i = 0; i < slots; i++) {
+                float p = output.get(base + i);
+                if (p > maxProb[i]) {
+                    maxProb[i] = p;
+                    maxClass[i] = k;
+                }
+            }
+        }
+
+        // Pass 2: geometry only for slots that survived the threshold
+        for (int i = 0; i < slots; i++) {
+            float confidence = maxProb[i];
+            if (confidence < confidenceThreshold || confidence <= 0.0f) {
+                continue;
+            }
+
+            float xCenter = output.get(X_CENTER_ROW * slots + i);
+            float yCenter = output.get(Y_CENTER_ROW * slots + i);
+            float halfWidth = output.get(WIDTH_ROW * slots + i) / 2.0f;
+            float halfHeight = output.get(HEIGHT_ROW * slots + i) / 2.0f;
+
+            float xMin = Math.max(0.0f, xCenter - halfWidth);
+            float yMin = Math.max(0.0f, yCenter - halfHeight);
+            float xMax = Math.min(1.0f, xCenter + halfWidth);
+            float yMax = Math.min(1.0f, yCenter + halfHeight);
+
+            if (xMin >= xMax || yMin >= yMax) {
+                lastInvalidBoxCount++;
+                continue;
+            }
+            out.add(xMin, yMin, xMax, yMax, confidence, maxClass[i], i);
+        }
+        return out.count;
+    }
+
+    /**
+     * Quantized variant of {@link #decode} for int8/uint8 output tensors, where real = scale * (q - zeroPoint).
+     * The threshold is converted to the quantized domain once, so pass 1 is pure integer max/argmax and
+     * only slots that clear it are dequantized.
+     *
+     * @param output    Raw output tensor bytes; absolute reads are used, so its position is not changed.
+     * @param signed    true for int8, false for uint8.
+     * @param scale     Output quantization scale (must be positive).
+     * @param zeroPoint Output quantization zero point.
+     */
+    int decodeQuantized(ByteBuffer output, boolean signed, float scale, int zeroPoint,
+                        float confidenceThreshold, DetectionCandidates out) {
+        if (scale <= 0.0f) {
+            throw new IllegalArgumentException("Quantized output needs a positive scale, got " + scale);
+        }
+        out.ensureCapacity(numSlots);
+        lastInvalidBoxCount = 0;
+        if (slotMaxQuantized == null) {
+            slotMaxQuantized = new int[slotMaxProb.length];
+        }
+
+        final int slots = numSlots;
+        final int[] maxQ = slotMaxQuantized;
+        final int[] maxClass = slotClassId;
+        // Sign-extended byte for int8, masked to 0..255 for uint8
+        final int mask = signed ? -1 : 0xFF;
+
+        // Smallest quantized value whose real value is >= threshold and > 0
+        int minQ = (int) Math.ceil(confidenceThreshold / scale + zeroPoint);
+        minQ = Math.max(minQ, zeroPoint + 1);
+
+        // Pass 1: class rows in memory order -> per-slot max/argmax, integer compares only
+        int base = FIRST_CLASS_ROW * slots;
+        for (int i = 0; i < slots; i++) {
+            maxQ[i] = output.get(base + i) & mask;
+            maxClass[i] = 0;
+        }
+        for (int k = 1; k < numClasses; k++) {
+            base = (FIRST_CLASS_ROW + k) * slots;
+            for (int i = 0; i < slots; i++) {
+                int q = output.get(base + i) & mask;
+                if (q > maxQ[i]) {
+                    maxQ[i] = q;
+                    maxClass[i] = k;
+                }
+            }
+        }
+
+        // Pass 2: dequantize score and geometry only for slots that survived the threshold
+        for (int i = 0; i < slots; i++) {
+            if (maxQ[i] < minQ) {
+                continue;
+            }
+            float confidence = scale * (maxQ[i] - zeroPoint);
+
+            float xCenter = scale * ((output.get(X_CENTER_ROW * slots + i) & mask) - zeroPoint);
+            float yCenter = scale * ((output.get(Y_CENTER_ROW * slots + i) & mask) - zeroPoint);
+            float halfWidth = scale * ((output.get(WIDTH_ROW * slots + i) & mask) - zeroPoint) / 2.0f;
+            float halfHeight = scale * ((output.get(HEIGHT_ROW * slots + i) & mask) - zeroPoint) / 2.0f;
+
+            float xMin = Math.max(0.0f, xCenter - halfWidth);
+            float yMin = Math.max(0.0f, yCenter - halfHeight);
+            float xMax = Math.min(1.0f, xCenter + halfWidth);
+            float yMax = Math.min(1.0f, yCenter + halfHeight);
+
+            if (xMin >= xMax || yMin >= yMax) {
+                lastInvalidBoxCount++;
+                continue;
+            }
+            out.add(xMin, yMin, xMax, yMax, confidence, maxClass[i], i);
+        }
+        return out.count;
+    }
+}
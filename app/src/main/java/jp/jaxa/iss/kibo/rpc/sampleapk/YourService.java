@@ -4,6 +4,7 @@ import android.graphics.Bitmap;
 import android.util.Log;
 import android.util.Pair;
 
+import jp.jaxa.iss.kibo.rpc.api.KiboRpcApi;
 import jp.jaxa.iss.kibo.rpc.api.KiboRpcService;
 
 import gov.nasa.arc.astrobee.types.Point;
@@ -11,18 +12,12 @@ import gov.nasa.arc.astrobee.types.Quaternion;
 
 import org.opencv.android.Utils;
 import org.opencv.core.Mat;
-import org.opencv.core.CvType;
-import org.opencv.calib3d.Calib3d;
-
-import org.opencv.imgproc.Imgproc;
-import org.opencv.core.Core;
-import org.opencv.core.Scalar;
 import org.opencv.core.MatOfPoint;
-import org.opencv.core.MatOfPoint2f;
-import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
 
 import android.text.TextUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -33,7 +28,13 @@ import java.util.Objects;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 /**
@@ -43,13 +44,16 @@ import java.util.Comparator;
 public class YourService extends KiboRpcService {
 
     private Map<String, List<Pair<Point, Quaternion>>> pointsMapList = new HashMap<>();
-    private Map<String, List<String>> areaDetectedClassesMap = new HashMap<>();
+    // Label -> areas/frames/poses it was seen from; filled by the vision workers, queried for the target approach
+    private final ItemLocationIndex<Pair<Point, Quaternion>> itemIndex = new ItemLocationIndex<>();
     private Pair<Pair<String, String>, String> itemTarget = Pair.create(Pair.create("", ""), "");
 
     private Map<String, Integer> areaNameToIdMap;
 
     private static final String TAG = "AstrobeeMission";
-    private RobotVisionProcessor visionProcessor;
+    // Built and warmed up in the background from onCreate; runPlan1 awaits it right before the first inference
+    private Future<RobotVisionProcessor> visionProcessorFuture;
+    private volatile RobotVisionProcessor visionProcessor;
 
     // Check your model and label file names
     private static final String MODEL_ASSET_NAME = "best_float32.tflite";
@@ -58,8 +62,45 @@ public class YourService extends KiboRpcService {
     private static final int MODEL_INPUT_HEIGHT = 480;
     private static final int MODEL_INPUT_CHANNELS = 3;
     private static final boolean IS_MODEL_INPUT_FLOAT = true;
+    // Time thread-count/XNNPACK/fp16 variants at startup and keep the fastest interpreter
+    private static final boolean AUTO_TUNE_INTERPRETER = true;
+    private static final int VISION_WARMUP_RUNS = 2;
+    // After this the mission stops waiting for the auto-tuned processor and builds a default one instead
+    private static final long VISION_INIT_TIMEOUT_MS = 60000;
+    // Tiled inference on the full calibrated NavCam frame instead of the squeezed panel crop (better recall on small items)
+    private static final boolean TILED_NAVCAM_INFERENCE = false;
+    private static final TileGrid NAV_CAM_TILES = new TileGrid(2, 2, 0.2f, true);
+
+    private static final List<String> LANDMARK_ITEMS = Arrays.asList("coin", "compass", "coral", "fossil", "key", "letter", "shell", "treasure_box");
+    private static final List<String> TREASURE_ITEMS = Arrays.asList("crystal", "diamond", "emerald");
+    // Skip the rest of an area's waypoints once its landmark and treasure are clear.
+    // Only checked when the previous frame is already processed; the mission thread never waits for it.
+    private static final boolean EARLY_EXIT_WAYPOINTS = true;
+    private final WaypointScheduler waypointScheduler = new WaypointScheduler(LANDMARK_ITEMS, TREASURE_ITEMS);
+    // Within an area, predict the panel quad from the previous frame and the pose delta instead of a full search
+    private static final boolean TRACK_PANEL_ACROSS_WAYPOINTS = true;
+    // Warp the panel quad straight into the model input (rectified, one pass) instead of mask + crop + resize.
+    // Detection boxes are then relative to the rectified panel; the saved crop is the warped input image.
+    // Off until measured on the robot: on a desktop core warpPerspective costs more than the ROI mask + resize it replaces.
+    private static final boolean WARP_PANEL_TO_INPUT = false;
+
+    private final CameraCalibrator calibrator = new CameraCalibrator();
+
+    // Up to ~40 MB of queued 1280x960 ARGB frames before submitters block
+    private static final int IMAGE_WRITE_QUEUE_CAPACITY = 8;
+    private static final long IMAGE_WRITE_FLUSH_TIMEOUT_MS = 30000;
+    private AsyncImageWriter imageWriter;
+    // Calibrated frames and warped panel inputs borrow from here; the writer returns saved Bitmaps (camera frames
+    // included). Crops change size every frame and are not pooled. Room for about five 1280x960 ARGB frames.
+    private static final long BITMAP_POOL_MAX_BYTES = 28L * 1024 * 1024;
+    private final BitmapPool bitmapPool = new BitmapPool(BITMAP_POOL_MAX_BYTES);
+
+    // Per-stage latency histograms and heap counters, written to METRICS_FILE_NAME after reportRoundingCompletion
+    private final MissionMetrics metrics = new MissionMetrics();
+    private static final String METRICS_FILE_NAME = "mission_metrics.txt";
 
     // แก้ไข saveImagePack ให้เลือก save Dock Cam หรือ Nav Cam ได้ และไม่เซฟ Mat
+    // Takes ownership of both Bitmaps: saved ones go to the image writer, the others back to the pool
     private void saveImagePack(Bitmap bitmapDockCam, Bitmap bitmapNavCam, int areaIndex, int imgIndex, List<String> detectedLabels, boolean saveDockCam, boolean saveNavCam) {
         String labelSuffix = "";
         if (detectedLabels != null && !detectedLabels.isEmpty()) {
@@ -69,17 +110,21 @@ public class YourService extends KiboRpcService {
         }
 
         if (saveDockCam && bitmapDockCam != null) {
-            api.saveBitmapImage(bitmapDockCam, "bit_dock_area_" + areaIndex + "_" + imgIndex + labelSuffix);
-            Log.d(TAG, "Saved RAW DockCam Bitmap: bit_dock_area_" + areaIndex + "_" + imgIndex + labelSuffix);
+            imageWriter.submit(bitmapDockCam, "bit_dock_area_" + areaIndex + "_" + imgIndex + labelSuffix);
+            Log.d(TAG, "Queued RAW DockCam Bitmap: bit_dock_area_" + areaIndex + "_" + imgIndex + labelSuffix);
         } else if (saveDockCam && bitmapDockCam == null) {
             Log.w(TAG, "DockCam RAW bitmap is null, skipping save for: bit_dock_area_" + areaIndex + "_" + imgIndex + labelSuffix);
+        } else {
+            bitmapPool.release(bitmapDockCam);
         }
 
         if (saveNavCam && bitmapNavCam != null) {
-            api.saveBitmapImage(bitmapNavCam, "bit_nav_area_" + areaIndex + "_" + imgIndex + labelSuffix);
-            Log.d(TAG, "Saved RAW NavCam Bitmap: bit_nav_area_" + areaIndex + "_" + imgIndex + labelSuffix);
+            imageWriter.submit(bitmapNavCam, "bit_nav_area_" + areaIndex + "_" + imgIndex + labelSuffix);
+            Log.d(TAG, "Queued RAW NavCam Bitmap: bit_nav_area_" + areaIndex + "_" + imgIndex + labelSuffix);
         } else if (saveNavCam && bitmapNavCam == null) {
             Log.w(TAG, "NavCam RAW bitmap is null, skipping save for: bit_nav_area_" + areaIndex + "_" + imgIndex + labelSuffix);
+        } else {
+            bitmapPool.release(bitmapNavCam);
         }
     }
 
@@ -94,52 +139,138 @@ public class YourService extends KiboRpcService {
         areaNameToIdMap.put("Area 3", 3);
         areaNameToIdMap.put("Area 4", 4);
 
-        try {
-            visionProcessor = new RobotVisionProcessor(
-                    this,
-                    MODEL_ASSET_NAME,
-                    LABELS_ASSET_NAME,
-                    MODEL_INPUT_WIDTH,
-                    MODEL_INPUT_HEIGHT,
-                    MODEL_INPUT_CHANNELS,
-                    IS_MODEL_INPUT_FLOAT
-            );
-            Log.d(TAG, "RobotVisionProcessor initialized successfully.");
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to initialize RobotVisionProcessor: " + e.getMessage(), e);
-            Log.e(TAG, "Vision processor initialization failed: " + e.getMessage());
-        }
-    }
+        // Simulator NavCam intrinsics, used until the API values are read in runPlan1
+        calibrator.registerIntrinsics(CameraCalibrator.NAV_CAM, CameraCalibrator.SIM_NAV_CAM_MATRIX, CameraCalibrator.SIM_NAV_CAM_DISTORTION);
 
-    private List<String> getUniqueDetectedItems(List<RobotVisionProcessor.DetectionResult> allDetectionsInArea) {
-        if (allDetectionsInArea == null || allDetectionsInArea.isEmpty()) {
-            Log.w(TAG, "No detections provided for aggregation.");
-            return new ArrayList<>();
-        }
+        imageWriter = new AsyncImageWriter(new AsyncImageWriter.Sink() {
+            @Override
+            public void save(Bitmap bitmap, String name) {
+                long start = System.nanoTime();
+                api.saveBitmapImage(bitmap, name);
+                metrics.record(MissionMetrics.Stage.SAVE_IMAGE, start);
+            }
+        }, IMAGE_WRITE_QUEUE_CAPACITY, AsyncImageWriter.OverflowPolicy.BLOCK, bitmapPool);
 
-        Set<String> uniqueItems = new HashSet<>();
-        for (RobotVisionProcessor.DetectionResult detection : allDetectionsInArea) {
-            if (detection.confidence >= RobotVisionProcessor.CONFIDENCE_THRESHOLD) {
-                uniqueItems.add(detection.label);
+        ExecutorService visionInitExecutor = Executors.newSingleThreadExecutor();
+        visionProcessorFuture = visionInitExecutor.submit(new Callable<RobotVisionProcessor>() {
+            @Override
+            public RobotVisionProcessor call() throws IOException {
+                return createVisionProcessor(InterpreterConfig.DEFAULT, AUTO_TUNE_INTERPRETER);
             }
-        }
-        List<String> result = new ArrayList<>(uniqueItems);
-        Collections.sort(result);
+        });
+        // The single init task still runs to completion; no further tasks are accepted
+        visionInitExecutor.shutdown();
+    }
 
-        Log.d(TAG, "Aggregated unique items for area: " + result.toString());
-        return result;
+    private RobotVisionProcessor createVisionProcessor(InterpreterConfig interpreterConfig, boolean autoTune) throws IOException {
+        long start = System.currentTimeMillis();
+        RobotVisionProcessor processor = new RobotVisionProcessor(
+                this,
+                MODEL_ASSET_NAME,
+                LABELS_ASSET_NAME,
+                MODEL_INPUT_WIDTH,
+                MODEL_INPUT_HEIGHT,
+                MODEL_INPUT_CHANNELS,
+                IS_MODEL_INPUT_FLOAT,
+                interpreterConfig,
+                autoTune
+        );
+        processor.warmUp(VISION_WARMUP_RUNS);
+        processor.setMetrics(metrics);
+        Log.d(TAG, "RobotVisionProcessor initialized and warmed up in " + (System.currentTimeMillis() - start) + " ms.");
+        return processor;
     }
 
+    /**
+     * Waits for the background initialization started in onCreate. If it fails or is not done within
+     * {@link #VISION_INIT_TIMEOUT_MS}, a processor with the default interpreter config and no auto-tune is
+     * built here instead, so the mission continues either way.
+     *
+     * @return false only if the model cannot be loaded at all (the fallback failed too).
+     */
+    private boolean awaitVisionProcessor() {
+        if (visionProcessor != null) {
+            return true;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            visionProcessor = visionProcessorFuture.get(VISION_INIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            Log.d(TAG, "Waited " + (System.currentTimeMillis() - start) + " ms for RobotVisionProcessor.");
+            return true;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to initialize RobotVisionProcessor: " + e.getCause().getMessage(), e.getCause());
+        } catch (TimeoutException e) {
+            // The background task keeps running; onDestroy closes its processor if it ever finishes
+            Log.e(TAG, "RobotVisionProcessor initialization did not finish within " + VISION_INIT_TIMEOUT_MS + " ms.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.e(TAG, "Interrupted while waiting for RobotVisionProcessor.");
+        }
+
+        Log.w(TAG, "Building a fallback RobotVisionProcessor with " + InterpreterConfig.DEFAULT + " and no auto-tune.");
+        try {
+            visionProcessor = createVisionProcessor(InterpreterConfig.DEFAULT, false);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Fallback RobotVisionProcessor failed as well: " + e.getMessage(), e);
+            return false;
+        }
+    }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         Log.d(TAG, "YourService onDestroy started.");
 
-        if (visionProcessor != null) {
-            visionProcessor.close();
+        RobotVisionProcessor processor = visionProcessor;
+        if (processor != null) {
+            processor.close();
             Log.d(TAG, "RobotVisionProcessor closed.");
         }
+        // The background processor, if it finished but was replaced by the fallback (or never collected)
+        if (visionProcessorFuture != null && visionProcessorFuture.isDone()) {
+            try {
+                RobotVisionProcessor background = visionProcessorFuture.get();
+                if (background != processor) {
+                    background.close();
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                Log.w(TAG, "Background RobotVisionProcessor was never initialized: " + e.getMessage());
+            }
+        }
+        calibrator.release();
+        PanelCropper.releaseWorkspaces();
+        if (imageWriter != null) {
+            imageWriter.shutdown();
+        }
+        bitmapPool.clear();
+    }
+
+    /**
+     * Registers the per-camera intrinsics reported by the API. Falls back to the default NavCam values
+     * (the previous behavior for every camera) when the API does not provide them.
+     */
+    private void registerCameraIntrinsics() {
+        try {
+            double[][] navCam = api.getNavCamIntrinsics();
+            if (navCam != null && navCam.length >= 2) {
+                calibrator.registerIntrinsics(CameraCalibrator.NAV_CAM, navCam[0], navCam[1]);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "NavCam intrinsics unavailable from API, keeping defaults: " + e.getMessage());
+        }
+        try {
+            double[][] dockCam = api.getDockCamIntrinsics();
+            if (dockCam != null && dockCam.length >= 2) {
+                calibrator.registerIntrinsics(CameraCalibrator.DOCK_CAM, dockCam[0], dockCam[1]);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "DockCam intrinsics unavailable from API: " + e.getMessage());
+        }
+        if (!calibrator.hasIntrinsics(CameraCalibrator.DOCK_CAM)) {
+            Log.w(TAG, "Using default NavCam intrinsics for DockCam.");
+            calibrator.registerIntrinsics(CameraCalibrator.DOCK_CAM, CameraCalibrator.SIM_NAV_CAM_MATRIX, CameraCalibrator.SIM_NAV_CAM_DISTORTION);
+        }
     }
 
 
@@ -147,12 +278,7 @@ public class YourService extends KiboRpcService {
     protected void runPlan1() {
         api.startMission();
         Log.i(TAG, "Mission started. Astrobee is ready!");
-
-        if (visionProcessor == null) {
-            Log.e(TAG, "RobotVisionProcessor was not initialized successfully. Cannot proceed with vision tasks.");
-            Log.e(TAG, "Vision system failed to initialize. Mission aborted.");
-            return;
-        }
+        registerCameraIntrinsics();
 
         pointsMapList.put("Area 1", new ArrayList<Pair<Point, Quaternion>>(Arrays.asList(
                 new Pair<>(new Point(10.6265d, -9.8406d, 5.00906d), new Quaternion(-0.176166f, -0.176166f, 0.684811f, 0.684811f)),
@@ -180,10 +306,20 @@ public class YourService extends KiboRpcService {
 
         List<String> sequencePath = new ArrayList<>(Arrays.asList("Area 1", "Area 2", "Area 3", "Area 4"));
 
+        Point pointAstro = new Point(11.143d, -6.7607d, 4.9654d);
+        Quaternion quaternionAstro = new Quaternion(0f, 0f, 0.707f, 0.707f);
+
+        // Vision work runs on one worker thread while the robot flies to the next waypoint, so the frames of an area
+        // reach its QuadTracker and AreaEvidence in waypoint order. Area aggregation runs on a separate thread once an
+        // area's frames are done; its setAreaInfo calls are made here on the mission thread.
+        ExecutorService frameExecutor = Executors.newSingleThreadExecutor();
+        ExecutorService areaReportExecutor = Executors.newSingleThreadExecutor();
+        List<Future<?>> pendingWork = new ArrayList<>();
+        List<Future<AreaReport>> areaReports = new ArrayList<>();
+
         for (int i = 0; i < sequencePath.size(); i++) { // i is areaIndex
-            String areaName = sequencePath.get(i);
+            final String areaName = sequencePath.get(i);
             List<Pair<Point, Quaternion>> areaPosList = pointsMapList.get(areaName);
-
             if (areaPosList == null || areaPosList.isEmpty()) {
                 Log.e(TAG, "No coordinates defined for area: " + areaName + ". Skipping this area.");
                 continue;
@@ -191,17 +327,27 @@ public class YourService extends KiboRpcService {
 
             Log.i(TAG, "Processing " + areaName);
 
-            List<RobotVisionProcessor.DetectionResult> allDetectionsInCurrentArea = new ArrayList<>();
-            String currentImageLabelSuffix = ""; // Declare here to be in scope for saving
+            final List<Future<List<RobotVisionProcessor.DetectionResult>>> frameFutures = new ArrayList<>();
+            // Each frame's detections are voted into the area evidence as soon as that frame is processed
+            final AreaEvidence areaEvidence = new AreaEvidence(areaName, RobotVisionProcessor.CONFIDENCE_THRESHOLD);
+            final QuadTracker quadTracker = createQuadTracker(areaName.equals("Area 1") ? CameraCalibrator.DOCK_CAM : CameraCalibrator.NAV_CAM);
 
             for (int j = 0; j < areaPosList.size(); j++) { // j is imgIndex
+                if (EARLY_EXIT_WAYPOINTS && !frameFutures.isEmpty()
+                        && canSkipRemainingWaypoints(frameFutures.get(frameFutures.size() - 1), areaEvidence)) {
+                    Log.i(TAG, "Skipping remaining " + (areaPosList.size() - j) + " waypoint(s) of " + areaName + ": " + waypointScheduler.getLastReason());
+                    break;
+                }
+
                 Pair<Point, Quaternion> move = areaPosList.get(j);
                 Point point = move.first;
                 Quaternion quaternion = move.second;
 
                 Log.d(TAG, "Attempting to move to position " + (j + 1) + " in " + areaName + ": X=" + point.getX() + ", Y=" + point.getY() + ", Z=" + point.getZ());
                 try {
+                    long moveStart = System.nanoTime();
                     api.moveTo(point, quaternion, false);
+                    metrics.record(MissionMetrics.Stage.MOVE_TO, moveStart);
                     Log.d(TAG, "Move command sent to " + areaName + " position " + (j + 1) + ". Check robot logs for actual success.");
                 } catch (Exception e) {
                     Log.e(TAG, "Exception during moveTo command for " + areaName + " position " + (j + 1) + ": " + e.getMessage(), e);
@@ -211,158 +357,71 @@ public class YourService extends KiboRpcService {
 
                 Bitmap bitmapDockCam = null;
                 Bitmap bitmapNavCam = null;
-                Bitmap imageToProcess = null; // ภาพที่จะใช้ในการประมวลผล
 
-                boolean isArea1 = areaName.equals("Area 1");
+                final boolean isArea1 = areaName.equals("Area 1");
 
                 try {
                     // Area 1: ใช้ Dock Cam
+                    long captureStart = System.nanoTime();
                     if (isArea1) {
                         Log.d(TAG, "Capturing DockCam for " + areaName + " position " + (j + 1));
                         bitmapDockCam = api.getBitmapDockCam();
-                        imageToProcess = bitmapDockCam; // ใช้ Dock Cam ในการประมวลผล
+                        metrics.record(MissionMetrics.Stage.CAPTURE_DOCK_CAM, captureStart);
                     } else { // Area 2, 3, 4: ใช้ Nav Cam
                         Log.d(TAG, "Capturing NavCam for " + areaName + " position " + (j + 1));
                         bitmapNavCam = api.getBitmapNavCam();
-                        imageToProcess = bitmapNavCam; // ใช้ Nav Cam ในการประมวลผล
-                    }
-
-                    List<String> detectedLabelsForCurrentImage = new ArrayList<>();
-
-                    if (imageToProcess != null) {
-                        // 1. Get calibrated image (ใช้ภาพที่ได้จาก Dock/Nav Cam)
-                        Bitmap preprocessedImageBitmap = bitmapCalibrate(imageToProcess);
-                        Log.d(TAG, "Image calibration attempted for " + areaName + " position " + (j + 1));
-
-                        if (preprocessedImageBitmap != null) {
-                            // 2. Process image and get detections (ใช้ภาพที่ calibrate แล้ว)
-                            List<RobotVisionProcessor.DetectionResult> detections = visionProcessor.processImageAndGetResult(preprocessedImageBitmap);
-                            allDetectionsInCurrentArea.addAll(detections);
-
-                            Set<String> uniqueLabelsForImageSet = new HashSet<>();
-                            for (RobotVisionProcessor.DetectionResult d : detections) {
-                                if (d.confidence >= RobotVisionProcessor.CONFIDENCE_THRESHOLD) {
-                                    uniqueLabelsForImageSet.add(d.label);
-                                }
-                            }
-                            List<String> sortedUniqueLabelsForImage = new ArrayList<>(uniqueLabelsForImageSet);
-                            Collections.sort(sortedUniqueLabelsForImage);
-                            currentImageLabelSuffix = ""; // Reset suffix for potential re-use
-                            if (!sortedUniqueLabelsForImage.isEmpty()) {
-                                currentImageLabelSuffix = "_" + TextUtils.join("_", sortedUniqueLabelsForImage).replace(" ", "_");
-                            } else {
-                                currentImageLabelSuffix = "_no_object_detected";
-                            }
-
-                            // 3. Save the CALIBRATED image (ไม่ว่าจะเป็น Dock หรือ Nav Cam ที่ calibrate แล้ว)
-                            // ให้ระบุว่าเป็น Dock หรือ Nav ในชื่อไฟล์
-                            String calibratedFileNamePrefix = isArea1 ? "calibrate_dock_" : "calibrate_nav_";
-                            // แก้ไขชื่อตัวแปรตรงนี้ currentImageLablSuffix -> currentImageLabelSuffix
-                            api.saveBitmapImage(preprocessedImageBitmap, calibratedFileNamePrefix + i + "_" + j + currentImageLabelSuffix);
-                            Log.d(TAG, "Saved CALIBRATED image: " + calibratedFileNamePrefix + i + "_" + j + currentImageLabelSuffix);
-
-                            // 4. Perform the contour-based crop and save
-                            Bitmap contourCroppedBitmap = cropImage(preprocessedImageBitmap);
-                            if (contourCroppedBitmap != null) {
-                                String croppedFileNamePrefix = isArea1 ? "calibrate_crop_dock_" : "calibrate_crop_nav_";
-                                String contourCroppedFileName = croppedFileNamePrefix + i + "_" + j + currentImageLabelSuffix + "_contour_new";
-                                api.saveBitmapImage(contourCroppedBitmap, contourCroppedFileName);
-                                Log.d(TAG, "Saved CALIBRATED+CROPPED image: " + contourCroppedFileName);
-                                contourCroppedBitmap.recycle(); // Recycle after saving
-                            } else {
-                                Log.w(TAG, "Failed to perform contour-based crop for image at " + areaName + " pos " + (j + 1) + ". Cropped image will not be saved.");
-                            }
-
-                            detectedLabelsForCurrentImage.addAll(sortedUniqueLabelsForImage);
-
-                            for (RobotVisionProcessor.DetectionResult d : detections) {
-                                Log.d(TAG, "Detected in " + areaName + " pos " + (j + 1) + ": " + d.toString());
-                            }
-
-                            if (preprocessedImageBitmap != null) {
-                                preprocessedImageBitmap.recycle(); // Recycle after all uses
-                            }
-                        } else {
-                            Log.w(TAG, "Calibrated image was null for " + areaName + " position " + (j + 1) + ". Skipping further processing and saving for calibrated/cropped.");
-                        }
-
-                    } else {
-                        Log.w(TAG, "Camera image (raw) was null at " + areaName + " pos " + (j + 1) + ". No prediction or image saving made.");
-                        Log.e(TAG, "Camera image null at " + areaName + " pos " + (j + 1));
+                        metrics.record(MissionMetrics.Stage.CAPTURE_NAV_CAM, captureStart);
                     }
-
-                    // Save the original (raw) images based on the specific area's requirements
-                    saveImagePack(bitmapDockCam, bitmapNavCam, i, j, detectedLabelsForCurrentImage, isArea1, !isArea1); // Area 1: save Dock, others: save Nav
-
                 } catch (Exception e) {
-                    Log.e(TAG, "Exception during image capture or vision processing for " + areaName + " position " + (j + 1) + ": " + e.getMessage(), e);
-                    Log.e(TAG, "Image processing error at " + areaName + " pos " + (j + 1) + ": " + e.getMessage());
-                } finally {
-                    // Ensure all Bitmaps obtained from API are recycled
-                    if (bitmapNavCam != null) {
-                        bitmapNavCam.recycle();
-                    }
-                    if (bitmapDockCam != null) {
-                        bitmapDockCam.recycle();
-                    }
-                    // imageToProcess, preprocessedImageBitmap, contourCroppedBitmap are recycled within the try block if not null
+                    Log.e(TAG, "Exception during image capture for " + areaName + " position " + (j + 1) + ": " + e.getMessage(), e);
                 }
-            }
-
-            List<String> uniqueDetectedItems = getUniqueDetectedItems(allDetectionsInCurrentArea);
-
-            if (!uniqueDetectedItems.isEmpty()) {
-                Log.i(TAG, "Final unique detected items for " + areaName + ": " + uniqueDetectedItems.toString());
-
-                areaDetectedClassesMap.put(areaName, uniqueDetectedItems);
 
-                String reportString = TextUtils.join(",", uniqueDetectedItems);
-                if (reportString.isEmpty() && !allDetectionsInCurrentArea.isEmpty()) {
-                    reportString = "Detected_But_Low_Conf";
-                } else if (reportString.isEmpty()) {
-                    reportString = "No_Item_Detected";
+                // The model has been loading since onCreate; only the first frame can have to wait for it
+                if (!awaitVisionProcessor()) {
+                    Log.e(TAG, "RobotVisionProcessor was not initialized successfully. Cannot proceed with vision tasks.");
+                    Log.e(TAG, "Vision system failed to initialize. Mission aborted.");
+                    bitmapPool.release(bitmapDockCam);
+                    bitmapPool.release(bitmapNavCam);
+                    frameExecutor.shutdownNow();
+                    areaReportExecutor.shutdownNow();
+                    return;
                 }
 
-                List<String> landmarkItem = new ArrayList<>(Arrays.asList("coin", "compass", "coral", "fossil", "key", "letter", "shell", "treasure_box"));
-                List<String> resultItem = new ArrayList<>();
-                int resCount = 0;
-                Integer areaId = areaNameToIdMap.get(areaName);
-                if (areaId != null) {
-                    for (String item : uniqueDetectedItems) {
-                        for (String lm : landmarkItem) {
-                            if (item.equals(lm)) {
-                                resultItem.add(item);
-                                resCount++;
-                            }
-                        }
+                // Hand the frame to a worker; the next moveTo starts right away
+                final int areaIndex = i;
+                final int imgIndex = j;
+                final Bitmap capturedDockCam = bitmapDockCam;
+                final Bitmap capturedNavCam = bitmapNavCam;
+                final Pair<Point, Quaternion> framePose = move;
+                frameFutures.add(frameExecutor.submit(new Callable<List<RobotVisionProcessor.DetectionResult>>() {
+                    @Override
+                    public List<RobotVisionProcessor.DetectionResult> call() {
+                        List<RobotVisionProcessor.DetectionResult> detections = processFrame(areaName, areaIndex, imgIndex, isArea1,
+                                capturedDockCam, capturedNavCam, quadTracker, framePose);
+                        areaEvidence.addFrame(imgIndex, detections);
+                        return detections;
                     }
-                    String resultString = TextUtils.join(",", resultItem);
-                    api.setAreaInfo(areaId, resultString, resCount);
-                    Log.i(TAG, "Reported Area: " + areaName + " (ID: " + areaId + "), Detected Items: " + reportString);
-                } else {
-                    Log.e(TAG, "Area ID not found for areaName: " + areaName + ". Cannot report area info via API.");
-                    Log.e(TAG, "Area ID not found for " + areaName + ". Reporting skipped.");
-                }
+                }));
+            }
 
-            } else {
-                Log.w(TAG, "No valid objects detected for " + areaName + ". Reporting 'No_Item_Detected'.");
-                Integer areaId = areaNameToIdMap.get(areaName);
-                if (areaId != null) {
-                    api.setAreaInfo(areaId, "No_Item_Detected");
-                    Log.i(TAG, "Reported Area: " + areaName + " (ID: " + areaId + "), Detected Items: No_Item_Detected");
-                } else {
-                    Log.e(TAG, "Area ID not found for areaName: " + areaName + ". Cannot report default item.");
-                    Log.e(TAG, "Area ID not found for " + areaName + ". Reporting skipped.");
+            areaReports.add(areaReportExecutor.submit(new Callable<AreaReport>() {
+                @Override
+                public AreaReport call() {
+                    AreaReport report = reportArea(areaName, frameFutures, areaEvidence);
+                    if (quadTracker != null) {
+                        Log.d(TAG, areaName + " panel tracking: " + quadTracker);
+                    }
+                    return report;
                 }
-            }
+            }));
         }
 
         Log.i(TAG, "All patrol areas visited. Moving to astronaut.");
 
-        Point pointAstro = new Point(11.143d, -6.7607d, 4.9654d);
-        Quaternion quaternionAstro = new Quaternion(0f, 0f, 0.707f, 0.707f);
         try {
+            long moveStart = System.nanoTime();
             api.moveTo(pointAstro, quaternionAstro, false);
+            metrics.record(MissionMetrics.Stage.MOVE_TO, moveStart);
             Log.i(TAG, "Move command sent to Astronaut position. Check robot logs for actual success.");
         } catch (Exception e) {
             Log.e(TAG, "Exception during move to Astronaut position: " + e.getMessage(), e);
@@ -372,267 +431,563 @@ public class YourService extends KiboRpcService {
 
         Bitmap bitmapNavCamAstro = null;
         try {
+            long captureStart = System.nanoTime();
             bitmapNavCamAstro = api.getBitmapNavCam();
-
-            Bitmap preprocessedNavCamBitmapAstro = null;
-            if (bitmapNavCamAstro != null) {
-                preprocessedNavCamBitmapAstro = bitmapCalibrate(bitmapNavCamAstro);
-                if (preprocessedNavCamBitmapAstro != null) {
-                    api.saveBitmapImage(preprocessedNavCamBitmapAstro, "calibrate_astro_999");
-                    Log.d(TAG, "Saved CALIBRATED astronaut image: calibrate_astro_999");
-                } else {
-                    Log.w(TAG, "Calibrated astronaut bitmap is null.");
-                }
-            } else {
-                Log.w(TAG, "Raw astronaut NavCam bitmap is null.");
+            metrics.record(MissionMetrics.Stage.CAPTURE_NAV_CAM, captureStart);
+        } catch (Exception e) {
+            Log.e(TAG, "Exception during astronaut image capture: " + e.getMessage(), e);
+        }
+        final Bitmap capturedNavCamAstro = bitmapNavCamAstro;
+        pendingWork.add(frameExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                saveAstronautImages(capturedNavCamAstro);
             }
-
-
-            Bitmap croppedNavCamBitmapAstro = null;
-            if (preprocessedNavCamBitmapAstro != null) { // Checks if calibration was successful
-                croppedNavCamBitmapAstro = cropImage(preprocessedNavCamBitmapAstro);
-                if (croppedNavCamBitmapAstro != null) {
-                    api.saveBitmapImage(croppedNavCamBitmapAstro, "calibrate_crop_astro_999_new");
-                    Log.d(TAG, "Saved CALIBRATED+CROPPED astronaut image: calibrate_crop_astro_999_new");
-                } else {
-                    Log.w(TAG, "Cropped astronaut bitmap is null after cropImage.");
+        }));
+
+        // Join all outstanding vision work and area reports before completing the round
+        for (Future<AreaReport> areaReport : areaReports) {
+            try {
+                AreaReport report = areaReport.get();
+                if (report != null) {
+                    report.submit(api);
                 }
-            } else {
-                Log.w(TAG, "Preprocessed astronaut bitmap is null, cannot perform crop.");
-            }
-
-            List<String> emptyDetectedLabels = new ArrayList<>();
-            // Save the original raw astronaut NavCam image only
-            saveImagePack(null, bitmapNavCamAstro, -1, 999, emptyDetectedLabels, false, true);
-
-            if (preprocessedNavCamBitmapAstro != null) {
-                preprocessedNavCamBitmapAstro.recycle();
-            }
-            if (croppedNavCamBitmapAstro != null) {
-                croppedNavCamBitmapAstro.recycle();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Area report failed: " + e.getCause(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Log.e(TAG, "Interrupted while waiting for area reports.");
+                break;
             }
-
-        } catch (Exception e) {
-            Log.e(TAG, "Exception during saving astronaut images: " + e.getMessage(), e);
-            Log.e(TAG, "Saving astronaut image failed: " + e.getMessage());
-        } finally {
-            if (bitmapNavCamAstro != null) {
-                bitmapNavCamAstro.recycle();
+        }
+        for (Future<?> work : pendingWork) {
+            try {
+                work.get();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Background vision task failed: " + e.getCause(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Log.e(TAG, "Interrupted while waiting for background vision tasks.");
+                break;
             }
         }
+        frameExecutor.shutdown();
+        areaReportExecutor.shutdown();
 
+        // Make sure every queued image is on disk before the round is reported complete
+        imageWriter.flush(IMAGE_WRITE_FLUSH_TIMEOUT_MS);
         api.reportRoundingCompletion();
         Log.i(TAG, "Rounding completion reported.");
+        writeMetricsSummary();
 
         itemTarget = Pair.create(Pair.create("your_target_landmark_1", "your_target_landmark_2"), "your_target_treasure");
 
 
-        String areaTarget = "";
         Log.i(TAG, "Searching for target item: " + itemTarget.first.first + ", " + itemTarget.first.second + " with treasure: " + itemTarget.second);
-        for (Map.Entry<String, List<String>> entry : areaDetectedClassesMap.entrySet()) {
-            String currentAreaName = entry.getKey();
-            List<String> detectedClassesInArea = entry.getValue();
+        ItemLocationIndex.Sighting<Pair<Point, Quaternion>> targetView = findTargetView(itemTarget);
 
-            Log.d(TAG, "Checking Area: " + currentAreaName + ", Detected Classes: " + detectedClassesInArea);
+        api.notifyRecognitionItem();
+        if (targetView != null) {
 
-            boolean landmarkMatch = false;
-            if (!Objects.equals(itemTarget.first.first, "") && detectedClassesInArea.contains(itemTarget.first.first)) {
-                landmarkMatch = true;
+            Log.i(TAG, "Recognition item notified for target area: " + targetView.areaName);
+
+            Point point = targetView.pose.first;
+            Quaternion quaternion = targetView.pose.second;
+
+            Log.i(TAG, "Moving to best view of target (" + targetView + ") at: X=" + point.getX() + ", Y=" + point.getY() + ", Z=" + point.getZ());
+            try {
+                api.moveTo(point, quaternion, false);
+                Log.i(TAG, "Move command sent to target item position. Check robot logs for actual success.");
+            } catch (Exception e) {
+                Log.e(TAG, "Exception during move to target item position (" + targetView.areaName + "): " + e.getMessage(), e);
             }
-            if (!Objects.equals(itemTarget.first.second, "") && detectedClassesInArea.contains(itemTarget.first.second)) {
-                landmarkMatch = true;
+
+            try {
+                api.takeTargetItemSnapshot();
+                Log.i(TAG, "Target item snapshot taken. Mission completed successfully.");
+            } catch (Exception e) {
+                Log.e(TAG, "Exception during takeTargetItemSnapshot: " + e.getMessage(), e);
             }
+        } else {
+            Log.e(TAG, "Target item area not found based on recognition results. Mission may not be fully completed.");
+        }
+    }
 
-            boolean treasureMatch = Objects.equals(itemTarget.second, "") || detectedClassesInArea.contains(itemTarget.second);
+    /**
+     * Logs the metrics summary and writes it to the app's external files directory (internal if unavailable).
+     */
+    private void writeMetricsSummary() {
+        String summary = metrics.summary();
+        Log.i(TAG, summary);
+        Log.i(TAG, "Bitmap pool: " + bitmapPool);
+        File dir = getExternalFilesDir(null);
+        File file = new File(dir != null ? dir : getFilesDir(), METRICS_FILE_NAME);
+        try {
+            metrics.writeSummary(file);
+            Log.i(TAG, "Metrics summary written to " + file.getAbsolutePath());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write metrics summary: " + e.getMessage(), e);
+        }
+    }
 
-            if (landmarkMatch && treasureMatch) {
-                areaTarget = currentAreaName;
-                Log.i(TAG, "Target item found in " + areaTarget + "!");
-                break;
+    /**
+     * Looks up the target in the item index: an area where one of the target landmarks and the treasure
+     * (if given) were both reported. Returns the frame with the best view of the item to photograph,
+     * the treasure if one is given, otherwise the landmark.
+     *
+     * @return Best-view sighting, or null if no reported area matches.
+     */
+    private ItemLocationIndex.Sighting<Pair<Point, Quaternion>> findTargetView(Pair<Pair<String, String>, String> target) {
+        List<String> landmarks = new ArrayList<>();
+        for (String landmark : Arrays.asList(target.first.first, target.first.second)) {
+            if (!Objects.equals(landmark, "")) {
+                landmarks.add(landmark);
+            }
+        }
+        String treasure = target.second;
+        boolean hasTreasure = !Objects.equals(treasure, "");
+
+        if (hasTreasure) {
+            ItemLocationIndex.Sighting<Pair<Point, Quaternion>> treasureView = itemIndex.bestAccepted(treasure);
+            if (treasureView != null) {
+                for (String landmark : landmarks) {
+                    if (itemIndex.isAccepted(treasureView.areaName, landmark)) {
+                        Log.i(TAG, "Target item found in " + treasureView.areaName + "!");
+                        return treasureView;
+                    }
+                }
             }
         }
 
-        api.notifyRecognitionItem();
-        if (!areaTarget.isEmpty()) {
+        // Treasure not reported with a target landmark in its best area: go by the landmarks instead
+        ItemLocationIndex.Sighting<Pair<Point, Quaternion>> bestView = null;
+        for (String landmark : landmarks) {
+            ItemLocationIndex.Sighting<Pair<Point, Quaternion>> landmarkView = itemIndex.bestAccepted(landmark);
+            if (landmarkView == null) {
+                continue;
+            }
+            ItemLocationIndex.Sighting<Pair<Point, Quaternion>> view = landmarkView;
+            if (hasTreasure) {
+                if (!itemIndex.isAccepted(landmarkView.areaName, treasure)) {
+                    continue;
+                }
+                view = itemIndex.best(treasure, landmarkView.areaName);
+            }
+            if (bestView == null || view.viewScore() > bestView.viewScore()) {
+                bestView = view;
+            }
+        }
+        if (bestView != null) {
+            Log.i(TAG, "Target item found in " + bestView.areaName + "!");
+        }
+        return bestView;
+    }
+
+    private static QuadTracker.Pose toTrackerPose(Point point, Quaternion quaternion) {
+        return new QuadTracker.Pose(point.getX(), point.getY(), point.getZ(),
+                quaternion.getX(), quaternion.getY(), quaternion.getZ(), quaternion.getW());
+    }
 
-            Log.i(TAG, "Recognition item notified for target area: " + areaTarget);
+    /**
+     * @return A panel tracker for one area's frames, or null if tracking is off or the camera has no intrinsics.
+     */
+    private QuadTracker createQuadTracker(String camera) {
+        if (!TRACK_PANEL_ACROSS_WAYPOINTS) {
+            return null;
+        }
+        double[] focalLengths = calibrator.getFocalLengths(camera);
+        if (focalLengths == null) {
+            Log.w(TAG, "No intrinsics for " + camera + ", panel tracking disabled.");
+            return null;
+        }
+        return new QuadTracker(camera, focalLengths[0], focalLengths[1]);
+    }
 
-            List<Pair<Point, Quaternion>> targetCoordList = pointsMapList.get(areaTarget);
-            if (targetCoordList != null && targetCoordList.size() >= 2) {
-                Pair<Point, Quaternion> targetCoordPair = targetCoordList.get(1);
-                Point point = targetCoordPair.first;
-                Quaternion quaternion = targetCoordPair.second;
+    /**
+     * Calibrates, crops, runs detection on and saves one captured frame. Runs on a vision worker thread
+     * while the robot is already moving to the next waypoint. Takes ownership of the captured Bitmaps.
+     *
+     * The detections are also added to the item index, with box areas in frame pixels.
+     *
+     * @param quadTracker Panel tracker of the area, or null for a full quad search.
+     * @param framePose   Pose the frame was taken from, for the tracker and the item index.
+     * @return Detections of the frame; empty on failure.
+     */
+    private List<RobotVisionProcessor.DetectionResult> processFrame(String areaName, int i, int j, boolean isArea1,
+                                                                    Bitmap bitmapDockCam, Bitmap bitmapNavCam,
+                                                                    QuadTracker quadTracker, Pair<Point, Quaternion> framePose) {
+        List<RobotVisionProcessor.DetectionResult> frameDetections = new ArrayList<>();
+        Bitmap imageToProcess = isArea1 ? bitmapDockCam : bitmapNavCam; // ภาพที่จะใช้ในการประมวลผล
+        String currentImageLabelSuffix = "";
+        boolean rawImagesQueued = false;
 
-                Log.i(TAG, "Moving to the 2nd coordinate of target area " + areaTarget + " at: X=" + point.getX() + ", Y=" + point.getY() + ", Z=" + point.getZ());
+        try {
+            List<String> detectedLabelsForCurrentImage = new ArrayList<>();
+
+            if (imageToProcess != null) {
+                // 1. Get calibrated image (ใช้ภาพที่ได้จาก Dock/Nav Cam)
+                // The undistorted Mat feeds crop and inference directly; a Bitmap is only made for saving
+                Mat calibratedMat = new Mat();
+                PanelCropper.CropResult crop = null;
+                MatOfPoint panelQuad = null;
+                Mat panelInput = new Mat();
+                Bitmap preprocessedImageBitmap = null;
+                boolean calibratedQueued = false;
                 try {
-                    api.moveTo(point, quaternion, false);
-                    Log.i(TAG, "Move command sent to target item position. Check robot logs for actual success.");
-                } catch (Exception e) {
-                    Log.e(TAG, "Exception during move to target item position (" + areaTarget + "): " + e.getMessage(), e);
-                }
+                    boolean calibrated = undistortToMat(imageToProcess, isArea1 ? CameraCalibrator.DOCK_CAM : CameraCalibrator.NAV_CAM, calibratedMat);
+                    Log.d(TAG, "Image calibration attempted for " + areaName + " position " + (j + 1));
+
+                    if (calibrated) {
+                        boolean tiled = TILED_NAVCAM_INFERENCE && !isArea1;
+                        QuadTracker.Pose pose = toTrackerPose(framePose.first, framePose.second);
+                        List<RobotVisionProcessor.DetectionResult> detections;
+                        // Frame pixels of the region the boxes are normalized to: rectified panel, crop ROI or whole frame
+                        double regionAreaPx = calibratedMat.total();
+                        long cropStart = System.nanoTime();
+                        if (WARP_PANEL_TO_INPUT && !tiled) {
+                            // 2. Process image and get detections (ใช้ภาพที่ calibrate แล้ว)
+                            // Only the quad is searched here; the warp into the model input also gives the saved "_contour_new" image
+                            panelQuad = quadTracker != null
+                                    ? quadTracker.findQuad(calibratedMat, pose)
+                                    : PanelCropper.findQuad(calibratedMat, PanelCropper.DEFAULT_PYRAMID_LEVELS, true);
+                            metrics.record(MissionMetrics.Stage.CROP, cropStart);
+                            detections = visionProcessor.processPanelQuad(calibratedMat, panelQuad, panelInput);
+                            if (panelQuad != null) {
+                                regionAreaPx = Imgproc.contourArea(panelQuad);
+                            }
+                        } else {
+                            crop = quadTracker != null ? quadTracker.crop(calibratedMat, pose) : PanelCropper.crop(calibratedMat);
+                            metrics.record(MissionMetrics.Stage.CROP, cropStart);
 
-                try {
-                    api.takeTargetItemSnapshot();
-                    Log.i(TAG, "Target item snapshot taken. Mission completed successfully.");
-                } catch (Exception e) {
-                    Log.e(TAG, "Exception during takeTargetItemSnapshot: " + e.getMessage(), e);
+                            // 2. Process image and get detections (ใช้ภาพที่ calibrate แล้ว)
+                            // The crop is computed once and shared by inference and the saved "_contour_new" image
+                            detections = tiled
+                                    ? visionProcessor.processTiled(calibratedMat, NAV_CAM_TILES)
+                                    : visionProcessor.processImageAndGetResult(crop);
+                            if (!tiled) {
+                                regionAreaPx = crop.roi.area();
+                            }
+                        }
+                        frameDetections.addAll(detections);
+                        itemIndex.addFrame(areaName, j, framePose, detections, regionAreaPx);
+
+                        Set<String> uniqueLabelsForImageSet = new HashSet<>();
+                        for (RobotVisionProcessor.DetectionResult d : detections) {
+                            if (d.confidence >= RobotVisionProcessor.CONFIDENCE_THRESHOLD) {
+                                uniqueLabelsForImageSet.add(d.label);
+                            }
+                        }
+                        List<String> sortedUniqueLabelsForImage = new ArrayList<>(uniqueLabelsForImageSet);
+                        Collections.sort(sortedUniqueLabelsForImage);
+                        currentImageLabelSuffix = ""; // Reset suffix for potential re-use
+                        if (!sortedUniqueLabelsForImage.isEmpty()) {
+                            currentImageLabelSuffix = "_" + TextUtils.join("_", sortedUniqueLabelsForImage).replace(" ", "_");
+                        } else {
+                            currentImageLabelSuffix = "_no_object_detected";
+                        }
+
+                        // 3. Save the CALIBRATED image (ไม่ว่าจะเป็น Dock หรือ Nav Cam ที่ calibrate แล้ว)
+                        // ให้ระบุว่าเป็น Dock หรือ Nav ในชื่อไฟล์
+                        String calibratedFileNamePrefix = isArea1 ? "calibrate_dock_" : "calibrate_nav_";
+                        preprocessedImageBitmap = bitmapPool.acquire(calibratedMat.cols(), calibratedMat.rows(), imageToProcess.getConfig());
+                        Utils.matToBitmap(calibratedMat, preprocessedImageBitmap);
+                        // แก้ไขชื่อตัวแปรตรงนี้ currentImageLablSuffix -> currentImageLabelSuffix
+                        imageWriter.submit(preprocessedImageBitmap, calibratedFileNamePrefix + i + "_" + j + currentImageLabelSuffix);
+                        calibratedQueued = true;
+                        Log.d(TAG, "Queued CALIBRATED image: " + calibratedFileNamePrefix + i + "_" + j + currentImageLabelSuffix);
+
+                        // 4. Save the contour-based crop used for inference
+                        Bitmap contourCroppedBitmap = crop != null ? cropToBitmap(crop) : matToPooledBitmap(panelInput);
+                        if (contourCroppedBitmap != null) {
+                            String croppedFileNamePrefix = isArea1 ? "calibrate_crop_dock_" : "calibrate_crop_nav_";
+                            String contourCroppedFileName = croppedFileNamePrefix + i + "_" + j + currentImageLabelSuffix + "_contour_new";
+                            imageWriter.submit(contourCroppedBitmap, contourCroppedFileName); // Writer returns it to the pool after saving
+                            Log.d(TAG, "Queued CALIBRATED+CROPPED image: " + contourCroppedFileName);
+                        } else {
+                            Log.w(TAG, "Failed to perform contour-based crop for image at " + areaName + " pos " + (j + 1) + ". Cropped image will not be saved.");
+                        }
+
+                        detectedLabelsForCurrentImage.addAll(sortedUniqueLabelsForImage);
+
+                        for (RobotVisionProcessor.DetectionResult d : detections) {
+                            Log.d(TAG, "Detected in " + areaName + " pos " + (j + 1) + ": " + d.toString());
+                        }
+                    } else {
+                        Log.w(TAG, "Calibrated image was null for " + areaName + " position " + (j + 1) + ". Skipping further processing and saving for calibrated/cropped.");
+                    }
+                } finally {
+                    if (crop != null) crop.release();
+                    if (panelQuad != null) panelQuad.release();
+                    panelInput.release();
+                    calibratedMat.release();
+                    if (!calibratedQueued) {
+                        bitmapPool.release(preprocessedImageBitmap);
+                    }
                 }
 
             } else {
-                Log.e(TAG, "Target coordinates for " + areaTarget + " not found or fewer than 2 points. Cannot move to 2nd target item position.");
+                Log.w(TAG, "Camera image (raw) was null at " + areaName + " pos " + (j + 1) + ". No prediction or image saving made.");
+                Log.e(TAG, "Camera image null at " + areaName + " pos " + (j + 1));
+            }
+
+            // Save the original (raw) images based on the specific area's requirements
+            rawImagesQueued = true; // saveImagePack takes ownership of both, even if it throws
+            saveImagePack(bitmapDockCam, bitmapNavCam, i, j, detectedLabelsForCurrentImage, isArea1, !isArea1); // Area 1: save Dock, others: save Nav
+
+        } catch (Exception e) {
+            Log.e(TAG, "Exception during vision processing for " + areaName + " position " + (j + 1) + ": " + e.getMessage(), e);
+            Log.e(TAG, "Image processing error at " + areaName + " pos " + (j + 1) + ": " + e.getMessage());
+        } finally {
+            // Ensure all Bitmaps obtained from API are released if they never reached the writer
+            if (!rawImagesQueued) {
+                bitmapPool.release(bitmapNavCam);
+                bitmapPool.release(bitmapDockCam);
             }
-        } else {
-            Log.e(TAG, "Target item area not found based on recognition results. Mission may not be fully completed.");
         }
+        metrics.sampleMemory();
+        return frameDetections;
     }
 
-    private static void assignMat(Mat mat, Double[][] arr) {
-        for (int i = 0; i < arr.length; i++) {
-            for (int j = 0; j < arr[0].length; j++) {
-                mat.put(i, j, arr[i][j]);
+    /**
+     * Asks the scheduler whether the current area is already resolved, provided the area's last frame has been
+     * processed. Frames run in waypoint order on one worker, so the evidence then covers every earlier frame.
+     * Never blocks: if the frame is still in flight the remaining waypoints are flown as usual.
+     */
+    private boolean canSkipRemainingWaypoints(Future<List<RobotVisionProcessor.DetectionResult>> previousFrame, AreaEvidence areaEvidence) {
+        if (!previousFrame.isDone()) {
+            Log.d(TAG, "Previous frame of " + areaEvidence.getAreaName() + " still processing, continuing to the next waypoint.");
+            return false;
+        }
+        boolean skip = waypointScheduler.canSkipRemaining(areaEvidence);
+        Log.d(TAG, "Waypoint scheduler for " + areaEvidence.getAreaName() + ": " + waypointScheduler.getLastReason());
+        return skip;
+    }
+
+    /**
+     * One area's setAreaInfo call, built on the area report thread and submitted from the mission thread:
+     * the API keeps the reported items in an unsynchronized map that notifyRecognitionItem reads later.
+     */
+    private static final class AreaReport {
+        final int areaId;
+        final String items;
+        /** Number of reported items, or -1 to report {@link #items} without a count. */
+        final int count;
+
+        AreaReport(int areaId, String items, int count) {
+            this.areaId = areaId;
+            this.items = items;
+            this.count = count;
+        }
+
+        void submit(KiboRpcApi api) {
+            if (count < 0) {
+                api.setAreaInfo(areaId, items);
+            } else {
+                api.setAreaInfo(areaId, items, count);
             }
+            Log.i(TAG, "setAreaInfo submitted for area ID " + areaId + ": " + items);
         }
     }
 
-    public static Bitmap bitmapCalibrate(Bitmap distortedImg) {
-        if (distortedImg == null) {
-            Log.e(TAG, "bitmapCalibrate: Input distortedImg is null.");
-            return null;
+    /**
+     * Waits for all frames of an area and builds the report of the items accepted by the area's evidence vote.
+     * Runs on the area report thread, so the mission thread never blocks on it.
+     *
+     * @return the area's setAreaInfo call, or null if it cannot be reported.
+     */
+    private AreaReport reportArea(String areaName, List<Future<List<RobotVisionProcessor.DetectionResult>>> frameFutures, AreaEvidence areaEvidence) {
+        List<RobotVisionProcessor.DetectionResult> allDetectionsInCurrentArea = new ArrayList<>();
+        for (Future<List<RobotVisionProcessor.DetectionResult>> frameFuture : frameFutures) {
+            try {
+                allDetectionsInCurrentArea.addAll(frameFuture.get());
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Frame processing failed for " + areaName + ": " + e.getCause(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Log.e(TAG, "Interrupted while waiting for frames of " + areaName);
+                return null;
+            }
         }
 
-        Mat simNavCamMatrix = null;
-        Mat simNavCamDistort = null;
-        Mat distortedImageMat = null;
-        Mat undistortedImageMat = null;
-        Bitmap undistortedImageBitmap = null;
+        for (AreaEvidence.ClassEvidence evidence : areaEvidence.ranked()) {
+            Log.d(TAG, areaName + " evidence: " + evidence + ", stability " + String.format("%.2f", areaEvidence.stability(evidence))
+                    + (areaEvidence.isAccepted(evidence) ? " -> accepted" : " -> rejected"));
+        }
+        List<String> uniqueDetectedItems = areaEvidence.acceptedLabels();
 
-        try {
-            Double NavCamArr[][] = {
-                    {523.105750, 0.000000, 635.434258},
-                    {0.000000, 534.765913, 500.335102},
-                    {0.000000, 0.000000, 1.000000}
-            };
-            Double DistCamArr[][] = {{-0.164787, 0.020375, -0.001572, -0.000369, 0.000000}};
-
-            simNavCamMatrix = new Mat(3, 3, CvType.CV_64FC1);
-            assignMat(simNavCamMatrix, NavCamArr);
-            simNavCamDistort = new Mat(1, 5, CvType.CV_64FC1);
-            assignMat(simNavCamDistort, DistCamArr);
-
-            distortedImageMat = new Mat();
-            Utils.bitmapToMat(distortedImg, distortedImageMat);
-            undistortedImageMat = new Mat();
+        if (!uniqueDetectedItems.isEmpty()) {
+            Log.i(TAG, "Final unique detected items for " + areaName + ": " + uniqueDetectedItems.toString());
 
-            Calib3d.undistort(distortedImageMat, undistortedImageMat, simNavCamMatrix, simNavCamDistort);
+            itemIndex.setAccepted(areaName, uniqueDetectedItems);
 
-            undistortedImageBitmap = Bitmap.createBitmap(undistortedImageMat.cols(), undistortedImageMat.rows(), distortedImg.getConfig());
-            Utils.matToBitmap(undistortedImageMat, undistortedImageBitmap);
+            String reportString = TextUtils.join(",", uniqueDetectedItems);
+            if (reportString.isEmpty() && !allDetectionsInCurrentArea.isEmpty()) {
+                reportString = "Detected_But_Low_Conf";
+            } else if (reportString.isEmpty()) {
+                reportString = "No_Item_Detected";
+            }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Exception in bitmapCalibrate: " + e.getMessage(), e);
-            return null; // Return null on error
-        } finally {
-            if (simNavCamMatrix != null) simNavCamMatrix.release();
-            if (simNavCamDistort != null) simNavCamDistort.release();
-            if (distortedImageMat != null) distortedImageMat.release();
-            if (undistortedImageMat != null) undistortedImageMat.release();
+            List<String> landmarkItem = LANDMARK_ITEMS;
+            List<String> resultItem = new ArrayList<>();
+            int resCount = 0;
+            Integer areaId = areaNameToIdMap.get(areaName);
+            if (areaId != null) {
+                for (String item : uniqueDetectedItems) {
+                    for (String lm : landmarkItem) {
+                        if (item.equals(lm)) {
+                            resultItem.add(item);
+                            resCount++;
+                        }
+                    }
+                }
+                String resultString = TextUtils.join(",", resultItem);
+                Log.i(TAG, "Report ready for Area: " + areaName + " (ID: " + areaId + "), Detected Items: " + reportString);
+                return new AreaReport(areaId, resultString, resCount);
+            } else {
+                Log.e(TAG, "Area ID not found for areaName: " + areaName + ". Cannot report area info via API.");
+                Log.e(TAG, "Area ID not found for " + areaName + ". Reporting skipped.");
+            }
+
+        } else {
+            Log.w(TAG, "No valid objects detected for " + areaName + ". Reporting 'No_Item_Detected'.");
+            Integer areaId = areaNameToIdMap.get(areaName);
+            if (areaId != null) {
+                Log.i(TAG, "Report ready for Area: " + areaName + " (ID: " + areaId + "), Detected Items: No_Item_Detected");
+                return new AreaReport(areaId, "No_Item_Detected", -1);
+            } else {
+                Log.e(TAG, "Area ID not found for areaName: " + areaName + ". Cannot report default item.");
+                Log.e(TAG, "Area ID not found for " + areaName + ". Reporting skipped.");
+            }
         }
-        return undistortedImageBitmap;
+        return null;
     }
 
     /**
-     * Crops an image based on the largest 4-point contour found.
-     * Implemented based on the provided Python code.
-     *
-     * @param inputBitmap The input Bitmap to be cropped.
-     * @return The cropped Bitmap, or the original Bitmap if no valid contour is found or cropping fails.
+     * Calibrates, crops and queues the astronaut images for saving. Takes ownership of the captured Bitmap.
      */
-    public static Bitmap cropImage(Bitmap inputBitmap) {
-        Mat img = new Mat();
-        Utils.bitmapToMat(inputBitmap, img);
-        // Convert to grayscale
-        Mat gray = new Mat();
-        Imgproc.cvtColor(img, gray, Imgproc.COLOR_BGR2GRAY);
-
-        // Adaptive threshold
-        Mat thresh = new Mat();
-        Imgproc.adaptiveThreshold(gray, thresh, 255,
-                Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C,
-                Imgproc.THRESH_BINARY, 11, 2);
-
-        // Convert to HSV
-        Mat hsv = new Mat();
-        Imgproc.cvtColor(img, hsv, Imgproc.COLOR_BGR2HSV);
-
-        // Mask white colors in HSV
-        Scalar lowerWhite = new Scalar(0, 0, 160);
-        Scalar upperWhite = new Scalar(180, 30, 255);
-        Mat mask = new Mat();
-        Core.inRange(hsv, lowerWhite, upperWhite, mask);
-
-        // Combine mask with thresholded image
-        Mat edged = new Mat();
-        Core.bitwise_and(thresh, mask, edged);
-
-        // Find contours
-        List<MatOfPoint> contours = new ArrayList<>();
-        Mat hierarchy = new Mat();
-        Imgproc.findContours(edged.clone(), contours, hierarchy,
-                Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
-
-        // Sort contours by area
-        Collections.sort(contours, new Comparator<MatOfPoint>() {
-            @Override
-            public int compare(MatOfPoint a, MatOfPoint b) {
-                return Double.compare(Imgproc.contourArea(b), Imgproc.contourArea(a));
+    private void saveAstronautImages(Bitmap bitmapNavCamAstro) {
+        Bitmap preprocessedNavCamBitmapAstro = null;
+        Bitmap croppedNavCamBitmapAstro = null;
+        boolean rawImageQueued = false;
+        try {
+            if (bitmapNavCamAstro != null) {
+                Mat calibratedAstroMat = new Mat();
+                PanelCropper.CropResult cropAstro = null;
+                try {
+                    if (undistortToMat(bitmapNavCamAstro, CameraCalibrator.NAV_CAM, calibratedAstroMat)) {
+                        preprocessedNavCamBitmapAstro = bitmapPool.acquire(calibratedAstroMat.cols(), calibratedAstroMat.rows(), bitmapNavCamAstro.getConfig());
+                        Utils.matToBitmap(calibratedAstroMat, preprocessedNavCamBitmapAstro);
+                        long cropStart = System.nanoTime();
+                        cropAstro = PanelCropper.crop(calibratedAstroMat);
+                        metrics.record(MissionMetrics.Stage.CROP, cropStart);
+                        croppedNavCamBitmapAstro = cropToBitmap(cropAstro);
+                    } else {
+                        Log.w(TAG, "Calibrated astronaut bitmap is null.");
+                    }
+                } finally {
+                    if (cropAstro != null) cropAstro.release();
+                    calibratedAstroMat.release();
+                }
+
+                if (preprocessedNavCamBitmapAstro != null) { // Checks if calibration was successful
+                    // The writer returns both Bitmaps to the pool after saving
+                    imageWriter.submit(preprocessedNavCamBitmapAstro, "calibrate_astro_999");
+                    preprocessedNavCamBitmapAstro = null;
+                    Log.d(TAG, "Queued CALIBRATED astronaut image: calibrate_astro_999");
+                    if (croppedNavCamBitmapAstro != null) {
+                        imageWriter.submit(croppedNavCamBitmapAstro, "calibrate_crop_astro_999_new");
+                        croppedNavCamBitmapAstro = null;
+                        Log.d(TAG, "Queued CALIBRATED+CROPPED astronaut image: calibrate_crop_astro_999_new");
+                    } else {
+                        Log.w(TAG, "Cropped astronaut bitmap is null after crop.");
+                    }
+                } else {
+                    Log.w(TAG, "Preprocessed astronaut bitmap is null, cannot perform crop.");
+                }
+            } else {
+                Log.w(TAG, "Raw astronaut NavCam bitmap is null.");
             }
-        });
 
-        // Find a 4-point contour
-        MatOfPoint2f approxCurve = new MatOfPoint2f();
-        MatOfPoint2f contour2f;
-        MatOfPoint location = null;
-
-        for (int i = 0; i < Math.min(contours.size(), 10); i++) {
-            contour2f = new MatOfPoint2f(contours.get(i).toArray());
-            double epsilon = 0.01 * Imgproc.arcLength(contour2f, true);
-            Imgproc.approxPolyDP(contour2f, approxCurve, epsilon, true);
-            if (approxCurve.total() == 4) {
-                location = new MatOfPoint(approxCurve.toArray());
-                break;
+            List<String> emptyDetectedLabels = new ArrayList<>();
+            // Save the original raw astronaut NavCam image only
+            rawImageQueued = true;
+            saveImagePack(null, bitmapNavCamAstro, -1, 999, emptyDetectedLabels, false, true);
+
+        } catch (Exception e) {
+            Log.e(TAG, "Exception during saving astronaut images: " + e.getMessage(), e);
+            Log.e(TAG, "Saving astronaut image failed: " + e.getMessage());
+        } finally {
+            bitmapPool.release(preprocessedNavCamBitmapAstro);
+            bitmapPool.release(croppedNavCamBitmapAstro);
+            if (!rawImageQueued) {
+                bitmapPool.release(bitmapNavCamAstro);
             }
         }
+    }
 
-        if (location == null) {
-            Bitmap bitmapImg = Bitmap.createBitmap(img.width(), img.height(), inputBitmap.getConfig());
-            Utils.matToBitmap(img, bitmapImg);
-            return bitmapImg;
+    /**
+     * Undistorts a camera Bitmap into {@code dst} (RGBA), without going back through a Bitmap.
+     *
+     * @return false if the image is null, no intrinsics are registered for the camera, or conversion failed.
+     */
+    private boolean undistortToMat(Bitmap distortedImg, String camera, Mat dst) {
+        if (distortedImg == null) {
+            Log.e(TAG, "undistortToMat: Input distortedImg is null.");
+            return false;
         }
+        Mat distortedImageMat = new Mat();
+        long start = System.nanoTime();
+        try {
+            Utils.bitmapToMat(distortedImg, distortedImageMat);
+            if (!calibrator.undistort(camera, distortedImageMat, dst)) {
+                Log.e(TAG, "undistortToMat: No intrinsics registered for " + camera);
+                return false;
+            }
+            metrics.record(MissionMetrics.Stage.CALIBRATE, start);
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Exception in undistortToMat: " + e.getMessage(), e);
+            return false;
+        } finally {
+            distortedImageMat.release();
+        }
+    }
 
-        // Create mask from polygon
-        Mat polyMask = Mat.zeros(gray.size(), CvType.CV_8UC1);
-        List<MatOfPoint> list = new ArrayList<>();
-        list.add(location);
-        Imgproc.fillPoly(polyMask, list, new Scalar(255));
-
-        // Apply mask to image
-        Mat sampleImage = new Mat();
-        Core.bitwise_and(img, img, sampleImage, polyMask);
+    /**
+     * Converts the crop produced by {@link PanelCropper} into a Bitmap for saving.
+     *
+     * The crop size follows the panel, so it never matches a pooled Bitmap: it gets a new Bitmap, which the pool
+     * recycles when the writer hands it back.
+     *
+     * @return The cropped Bitmap (the whole frame if no panel quad was found), or null on error.
+     */
+    private Bitmap cropToBitmap(PanelCropper.CropResult crop) {
+        return crop == null ? null : matToBitmap(crop.cropped, false);
+    }
 
-        // Crop using bounding box of polygon
-        int xMin = Integer.MAX_VALUE, xMax = Integer.MIN_VALUE;
-        int yMin = Integer.MAX_VALUE, yMax = Integer.MIN_VALUE;
+    private Bitmap matToPooledBitmap(Mat image) {
+        return matToBitmap(image, true);
+    }
 
-        for (org.opencv.core.Point p : location.toArray()) {
-            xMin = Math.min(xMin, (int) p.x);
-            xMax = Math.max(xMax, (int) p.x);
-            yMin = Math.min(yMin, (int) p.y);
-            yMax = Math.max(yMax, (int) p.y);
+    /**
+     * @param pooled Whether to take the Bitmap from the Bitmap pool; only worth it for sizes that repeat.
+     * @return An RGBA Mat copied into a Bitmap, or null if the Mat is empty or on error.
+     */
+    private Bitmap matToBitmap(Mat image, boolean pooled) {
+        if (image.empty()) {
+            return null;
+        }
+        Bitmap bitmapImg = null;
+        try {
+            bitmapImg = pooled
+                    ? bitmapPool.acquire(image.cols(), image.rows(), Bitmap.Config.ARGB_8888)
+                    : Bitmap.createBitmap(image.cols(), image.rows(), Bitmap.Config.ARGB_8888);
+            Utils.matToBitmap(image, bitmapImg);
+            return bitmapImg;
+        } catch (Exception e) {
+            Log.e(TAG, "Exception in matToBitmap: " + e.getMessage(), e);
+            bitmapPool.release(bitmapImg);
+            return null;
         }
-
-        Rect roi = new Rect(xMin, yMin, xMax - xMin, yMax - yMin);
-        Bitmap bitmapImg = Bitmap.createBitmap(xMax - xMin, yMax - yMin, inputBitmap.getConfig());
-        Utils.matToBitmap(new Mat(sampleImage, roi), bitmapImg);
-        return bitmapImg;
     }
 }
\ No newline at end of file
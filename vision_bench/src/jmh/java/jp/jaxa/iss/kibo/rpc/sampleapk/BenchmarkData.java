@@ -0,0 +1,87 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.FloatBuffer;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic inputs shared by the benchmarks.
+ */
+final class BenchmarkData {
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Fills a [1, 4 + numClasses, numSlots] tensor: low class scores everywhere,
+     * with {@code positiveFraction} of the slots given one confident class and a valid box.
+     */
+    static void fillYoloOutput(FloatBuffer output, int numClasses, int numSlots, float positiveFraction, Random random) {
+        for (int i = 0; i < numSlots; i++) {
+            output.put(i, random.nextFloat());
+            output.put(numSlots + i, random.nextFloat());
+            output.put(2 * numSlots + i, 0.02f + random.nextFloat() * 0.2f);
+            output.put(3 * numSlots + i, 0.02f + random.nextFloat() * 0.2f);
+            for (int k = 0; k < numClasses; k++) {
+                output.put((4 + k) * numSlots + i, random.nextFloat() * 0.3f);
+            }
+            if (random.nextFloat() < positiveFraction) {
+                output.put((4 + random.nextInt(numClasses)) * numSlots + i, 0.7f + random.nextFloat() * 0.3f);
+            }
+        }
+    }
+
+    /**
+     * Adds {@code count} boxes grouped in small clusters, as a detector produces around each object.
+     */
+    static void fillClusteredBoxes(DetectionCandidates candidates, int count, int numClasses, Random random) {
+        candidates.ensureCapacity(count);
+        int i = 0;
+        while (i < count) {
+            float cx = 0.1f + random.nextFloat() * 0.8f;
+            float cy = 0.1f + random.nextFloat() * 0.8f;
+            float size = 0.03f + random.nextFloat() * 0.12f;
+            int cls = random.nextInt(numClasses);
+            int clusterSize = 1 + random.nextInt(12);
+            for (int c = 0; c < clusterSize && i < count; c++, i++) {
+                float jx = (random.nextFloat() - 0.5f) * size * 0.3f;
+                float jy = (random.nextFloat() - 0.5f) * size * 0.3f;
+                float half = size * (0.4f + random.nextFloat() * 0.2f);
+                candidates.add(Math.max(0, cx + jx - half), Math.max(0, cy + jy - half),
+                        Math.min(1, cx + jx + half), Math.min(1, cy + jy + half),
+                        0.65f + random.nextFloat() * 0.35f, cls, i);
+            }
+        }
+    }
+
+    /**
+     * RGBA frame with a noisy dark background and a bright, slightly rotated panel with a few dark items on it.
+     */
+    static Mat syntheticPanelFrame(int width, int height) {
+        Mat frame = new Mat(height, width, CvType.CV_8UC4, new Scalar(60, 60, 60, 255));
+        Mat noise = new Mat(height, width, CvType.CV_8UC4);
+        Core.randu(noise, 0, 40);
+        Core.add(frame, noise, frame);
+        noise.release();
+
+        MatOfPoint panel = new MatOfPoint(
+                new Point(width * 0.30, height * 0.22),
+                new Point(width * 0.74, height * 0.25),
+                new Point(width * 0.71, height * 0.80),
+                new Point(width * 0.27, height * 0.77));
+        Imgproc.fillPoly(frame, Collections.singletonList(panel), new Scalar(235, 235, 235, 255));
+        panel.release();
+
+        Imgproc.circle(frame, new Point(width * 0.42, height * 0.45), (int) (height * 0.06), new Scalar(40, 90, 160, 255), -1);
+        Imgproc.rectangle(frame, new Point(width * 0.55, height * 0.55), new Point(width * 0.63, height * 0.66), new Scalar(150, 60, 30, 255), -1);
+        return frame;
+    }
+}
@@ -0,0 +1,45 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Contour-based panel crop on a synthetic 1280x960 NavCam-sized frame, through the OpenCV Java bindings.
+ * {@code pyramidLevels} 0 is the full-resolution contour search; 2 is the default quarter-resolution search.
+ */
+@State(Scope.Thread)
+public class ContourCropBenchmark {
+
+    @Param({"0", "1", "2"})
+    public int pyramidLevels;
+
+    @Param({"true"})
+    public boolean refineCorners;
+
+    private Mat frame;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        nu.pattern.OpenCV.loadLocally();
+        frame = BenchmarkData.syntheticPanelFrame(1280, 960);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        frame.release();
+    }
+
+    @Benchmark
+    public boolean crop() {
+        PanelCropper.CropResult result = PanelCropper.crop(frame, pyramidLevels, refineCorners);
+        boolean found = result.hasQuad();
+        result.release();
+        return found;
+    }
+}
@@ -0,0 +1,113 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * NMS over synthetic detection sets (clusters of overlapping boxes, several classes): the grid-pruned
+ * {@link NmsEngine} against the original sort-and-scan NMS on the same candidates.
+ */
+@State(Scope.Thread)
+public class NmsBenchmark {
+
+    // Same values as RobotVisionProcessor
+    private static final int MAX_NMS_CANDIDATES = 300;
+    private static final float IOU_THRESHOLD = 0.45f;
+
+    @Param({"50", "500", "5000"})
+    public int candidateCount;
+
+    private DetectionCandidates candidates;
+    private NmsEngine nms;
+    private List<BaselineDetection> baselineDetections;
+
+    @Setup
+    public void setUp() {
+        candidates = new DetectionCandidates(candidateCount);
+        BenchmarkData.fillClusteredBoxes(candidates, candidateCount, 11, new Random(42));
+        nms = new NmsEngine(MAX_NMS_CANDIDATES, IOU_THRESHOLD);
+        baselineDetections = new ArrayList<>(candidates.count);
+        for (int i = 0; i < candidates.count; i++) {
+            baselineDetections.add(new BaselineDetection(candidates.xmin[i], candidates.ymin[i], candidates.xmax[i], candidates.ymax[i],
+                    candidates.score[i], candidates.classId[i]));
+        }
+    }
+
+    @Benchmark
+    public int nms() {
+        return nms.run(candidates);
+    }
+
+    /**
+     * The NMS that RobotVisionProcessor ran before NmsEngine: sort all detections by confidence, then suppress
+     * same-class boxes against every kept one. The list copy stands in for the per-frame list it sorted in place.
+     */
+    @Benchmark
+    public int baselineNms() {
+        List<BaselineDetection> detectedObjects = new ArrayList<>(baselineDetections);
+        Collections.sort(detectedObjects, new Comparator<BaselineDetection>() {
+            @Override
+            public int compare(BaselineDetection d1, BaselineDetection d2) {
+                return Float.compare(d2.confidence, d1.confidence);
+            }
+        });
+
+        List<BaselineDetection> nmsDetections = new ArrayList<>();
+        boolean[] isSuppressed = new boolean[detectedObjects.size()];
+        for (int i = 0; i < detectedObjects.size(); i++) {
+            if (isSuppressed[i]) continue;
+
+            BaselineDetection currentDetection = detectedObjects.get(i);
+            nmsDetections.add(currentDetection);
+
+            for (int j = i + 1; j < detectedObjects.size(); j++) {
+                if (isSuppressed[j]) continue;
+
+                BaselineDetection otherDetection = detectedObjects.get(j);
+                if (currentDetection.classId == otherDetection.classId
+                        && currentDetection.calculateIoU(otherDetection) > IOU_THRESHOLD) {
+                    isSuppressed[j] = true;
+                }
+            }
+        }
+        return nmsDetections.size();
+    }
+
+    /**
+     * The fields and IoU of the original RobotVisionProcessor.DetectionResult.
+     */
+    private static final class BaselineDetection {
+        final float xmin, ymin, xmax, ymax;
+        final float confidence;
+        final int classId;
+
+        BaselineDetection(float xmin, float ymin, float xmax, float ymax, float confidence, int classId) {
+            this.xmin = xmin;
+            this.ymin = ymin;
+            this.xmax = xmax;
+            this.ymax = ymax;
+            this.confidence = confidence;
+            this.classId = classId;
+        }
+
+        float calculateIoU(BaselineDetection other) {
+            float intersectionWidth = Math.max(0, Math.min(xmax, other.xmax) - Math.max(xmin, other.xmin));
+            float intersectionHeight = Math.max(0, Math.min(ymax, other.ymax) - Math.max(ymin, other.ymin));
+            float intersectionArea = intersectionWidth * intersectionHeight;
+            float unionArea = (xmax - xmin) * (ymax - ymin) + (other.xmax - other.xmin) * (other.ymax - other.ymin) - intersectionArea;
+            if (unionArea == 0) {
+                return 0;
+            }
+            return intersectionArea / unionArea;
+        }
+    }
+}
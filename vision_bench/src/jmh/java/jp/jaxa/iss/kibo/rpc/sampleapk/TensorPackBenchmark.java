@@ -0,0 +1,76 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import nu.pattern.OpenCV;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Resize + normalization of a cropped RGBA panel into the 480x480 interpreter input buffer, and the two ways
+ * of getting there from a full frame with a known panel quad: mask + crop + resize, or one perspective warp.
+ */
+@State(Scope.Thread)
+public class TensorPackBenchmark {
+
+    @Param({"480"})
+    public int inputSize;
+
+    @Param({"true", "false"})
+    public boolean floatInput;
+
+    private InferenceBuffers buffers;
+    private Mat crop;
+    private Mat frame;
+    private Point[] quad;
+
+    @Setup
+    public void setUp() {
+        OpenCV.loadLocally();
+        buffers = new InferenceBuffers(new int[]{1, inputSize, inputSize, 3}, floatInput ? 4 : 1, new int[]{1, 15, 4725}, 4);
+        // Typical panel crop size from a 1280x960 NavCam frame
+        crop = new Mat(620, 820, CvType.CV_8UC4);
+        Core.randu(crop, 0, 256);
+        frame = new Mat(960, 1280, CvType.CV_8UC4);
+        Core.randu(frame, 0, 256);
+        // A slightly tilted panel of about that size
+        quad = new Point[]{new Point(250, 180), new Point(1050, 200), new Point(1030, 790), new Point(230, 770)};
+    }
+
+    @TearDown
+    public void tearDown() {
+        crop.release();
+        frame.release();
+        buffers.release();
+    }
+
+    @Benchmark
+    public ByteBuffer fillInputFromMat() {
+        return buffers.fillInputFromMat(crop);
+    }
+
+    @Benchmark
+    public ByteBuffer cropToQuadThenResize() {
+        PanelCropper.CropResult result = PanelCropper.cropToQuad(frame, new MatOfPoint(quad));
+        try {
+            return buffers.fillInputFromMat(result.cropped);
+        } finally {
+            result.release();
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer warpQuadToInput() {
+        return buffers.fillInputFromQuad(frame, PanelCropper.orderCorners(quad));
+    }
+}
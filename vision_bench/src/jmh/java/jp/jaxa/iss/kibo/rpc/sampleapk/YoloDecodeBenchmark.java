@@ -0,0 +1,59 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+ * Decoding of the [1, 15, 4725] YOLO output tensor used by RobotVisionProcessor, float32 and int8.
+ */
+@State(Scope.Thread)
+public class YoloDecodeBenchmark {
+
+    private static final int NUM_CLASSES = 11;
+    private static final int NUM_SLOTS = 4725;
+    private static final float CONFIDENCE_THRESHOLD = 0.65f;
+    // Typical int8 export of a [0, 1] output
+    private static final float INT8_SCALE = 1.0f / 255.0f;
+    private static final int INT8_ZERO_POINT = -128;
+
+    /** Fraction of slots whose best class clears the threshold. */
+    @Param({"0.001", "0.01", "0.1"})
+    public float positiveFraction;
+
+    private FloatBuffer output;
+    private ByteBuffer quantizedOutput;
+    private YoloOutputDecoder decoder;
+    private DetectionCandidates candidates;
+
+    @Setup
+    public void setUp() {
+        output = ByteBuffer.allocateDirect((4 + NUM_CLASSES) * NUM_SLOTS * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        BenchmarkData.fillYoloOutput(output, NUM_CLASSES, NUM_SLOTS, positiveFraction, new Random(42));
+        quantizedOutput = ByteBuffer.allocateDirect(output.capacity());
+        for (int i = 0; i < output.capacity(); i++) {
+            int q = Math.round(output.get(i) / INT8_SCALE) + INT8_ZERO_POINT;
+            quantizedOutput.put(i, (byte) Math.max(-128, Math.min(127, q)));
+        }
+        decoder = new YoloOutputDecoder(NUM_CLASSES, NUM_SLOTS);
+        candidates = new DetectionCandidates(NUM_SLOTS);
+    }
+
+    @Benchmark
+    public int decode() {
+        return decoder.decode(output, CONFIDENCE_THRESHOLD, candidates);
+    }
+
+    @Benchmark
+    public int decodeInt8() {
+        return decoder.decodeQuantized(quantizedOutput, true, INT8_SCALE, INT8_ZERO_POINT, CONFIDENCE_THRESHOLD, candidates);
+    }
+}
@@ -0,0 +1,317 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import nu.pattern.OpenCV;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Offline replay of saved mission frames through the vision pipeline, in parallel on a fork-join pool.
+ *
+ * Frames are the images the robot saves (bit_nav_area_I_J*.png / bit_dock_area_I_J*.png, or calibrate_* with
+ * --calibrated). Each frame is calibrated, cropped, inferred, decoded and NMS-filtered by a per-thread
+ * {@link ReplayWorker}; per-area labels are then aggregated the same way YourService.reportArea does.
+ *
+ * Run with: ./gradlew :vision_bench:replay --args="--frames DIR --model model.onnx [--threads N] [--out results.csv]"
+ */
+public class ReplayEngine {
+
+    private static final Pattern FRAME_NAME = Pattern.compile("^(bit_(nav|dock)_area|calibrate_(nav|dock))_(-?\\d+)_(\\d+).*\\.(png|jpg)$");
+
+    // Frames per leaf task; frames are ~10 ms each, so small leaves keep all workers busy
+    private static final int LEAF_SIZE = 2;
+
+    static class Config {
+        File framesDir;
+        String modelPath;
+        File labelsFile = new File("app/src/main/assets/label_txt.txt");
+        List<String> labels;
+        float confidenceThreshold = 0.65f;
+        float iouThreshold = 0.45f;
+        int inputSize = 480;
+        int maxCandidates = 300;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean calibrated;
+        // Box rows of the ONNX output are in input pixels (Ultralytics export); off for exports that normalize them
+        boolean pixelBoxes = true;
+        File out;
+    }
+
+    static class Frame {
+        final File file;
+        final String camera;
+        final int area;
+        final int index;
+        final boolean needsCalibration;
+
+        Frame(File file, String camera, int area, int index, boolean needsCalibration) {
+            this.file = file;
+            this.camera = camera;
+            this.area = area;
+            this.index = index;
+            this.needsCalibration = needsCalibration;
+        }
+    }
+
+    private static class ReplayTask extends RecursiveTask<List<ReplayWorker.FrameResult>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Frame> frames;
+        private final int from;
+        private final int to;
+        private final ThreadLocal<ReplayWorker> workers;
+
+        ReplayTask(List<Frame> frames, int from, int to, ThreadLocal<ReplayWorker> workers) {
+            this.frames = frames;
+            this.from = from;
+            this.to = to;
+            this.workers = workers;
+        }
+
+        @Override
+        protected List<ReplayWorker.FrameResult> compute() {
+            if (to - from <= LEAF_SIZE) {
+                List<ReplayWorker.FrameResult> results = new ArrayList<>(to - from);
+                ReplayWorker worker = workers.get();
+                for (int i = from; i < to; i++) {
+                    results.add(worker.process(frames.get(i)));
+                }
+                return results;
+            }
+            int mid = (from + to) >>> 1;
+            ReplayTask left = new ReplayTask(frames, from, mid, workers);
+            left.fork();
+            List<ReplayWorker.FrameResult> results = new ReplayTask(frames, mid, to, workers).compute();
+            List<ReplayWorker.FrameResult> leftResults = left.join();
+            leftResults.addAll(results);
+            return leftResults;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        final Config config = parseArgs(args);
+        OpenCV.loadLocally();
+
+        List<Frame> frames = listFrames(config);
+        if (frames.isEmpty()) {
+            System.err.println("No frames found in " + config.framesDir);
+            System.exit(1);
+        }
+
+        final CameraCalibrator calibrator = new CameraCalibrator();
+        // Robot-side DockCam falls back to the NavCam values when the API has none; do the same here
+        calibrator.registerIntrinsics(CameraCalibrator.NAV_CAM, CameraCalibrator.SIM_NAV_CAM_MATRIX, CameraCalibrator.SIM_NAV_CAM_DISTORTION);
+        calibrator.registerIntrinsics(CameraCalibrator.DOCK_CAM, CameraCalibrator.SIM_NAV_CAM_MATRIX, CameraCalibrator.SIM_NAV_CAM_DISTORTION);
+
+        ThreadLocal<ReplayWorker> workers = new ThreadLocal<ReplayWorker>() {
+            @Override
+            protected ReplayWorker initialValue() {
+                return new ReplayWorker(config, calibrator);
+            }
+        };
+
+        ForkJoinPool pool = new ForkJoinPool(config.threads);
+        List<ReplayWorker.FrameResult> results;
+        long start = System.nanoTime();
+        try {
+            results = pool.invoke(new ReplayTask(frames, 0, frames.size(), workers));
+        } finally {
+            pool.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        printAreaReport(results, config.confidenceThreshold);
+        printInvalidBoxes(results);
+        printThroughput(results, elapsed, config.threads);
+        if (config.out != null) {
+            writeCsv(results, config.out);
+            System.out.println("Per-frame detections written to " + config.out);
+        }
+        calibrator.release();
+    }
+
+    static List<Frame> listFrames(Config config) {
+        File[] files = config.framesDir.listFiles();
+        if (files == null) {
+            throw new IllegalArgumentException("Not a directory: " + config.framesDir);
+        }
+        Arrays.sort(files);
+        List<Frame> frames = new ArrayList<>();
+        for (File file : files) {
+            Matcher m = FRAME_NAME.matcher(file.getName());
+            if (!m.matches()) {
+                continue;
+            }
+            boolean isCalibratedFile = m.group(3) != null;
+            if (isCalibratedFile != config.calibrated) {
+                continue;
+            }
+            String cam = isCalibratedFile ? m.group(3) : m.group(2);
+            String camera = "dock".equals(cam) ? CameraCalibrator.DOCK_CAM : CameraCalibrator.NAV_CAM;
+            frames.add(new Frame(file, camera, Integer.parseInt(m.group(4)), Integer.parseInt(m.group(5)), !isCalibratedFile));
+        }
+        return frames;
+    }
+
+    private static void printAreaReport(List<ReplayWorker.FrameResult> results, float threshold) {
+        // Frames in waypoint order, as the robot adds them
+        List<ReplayWorker.FrameResult> sorted = new ArrayList<>(results);
+        Collections.sort(sorted, new Comparator<ReplayWorker.FrameResult>() {
+            @Override
+            public int compare(ReplayWorker.FrameResult a, ReplayWorker.FrameResult b) {
+                return Integer.compare(a.frame.index, b.frame.index);
+            }
+        });
+        Map<Integer, AreaEvidence> evidenceByArea = new TreeMap<>();
+        for (ReplayWorker.FrameResult result : sorted) {
+            if (result.frame.area < 0) {
+                continue; // Astronaut frames (area -1) are not part of any area
+            }
+            AreaEvidence evidence = evidenceByArea.get(result.frame.area);
+            if (evidence == null) {
+                // File indices are 0-based; the robot reports "Area 1" for index 0
+                evidence = new AreaEvidence("Area " + (result.frame.area + 1), threshold);
+                evidenceByArea.put(result.frame.area, evidence);
+            }
+            evidence.addFrame(result.frame.index, result.detections);
+        }
+        System.out.println("=== Area report ===");
+        for (AreaEvidence evidence : evidenceByArea.values()) {
+            List<String> accepted = evidence.acceptedLabels();
+            String items = accepted.isEmpty() ? "No_Item_Detected" : String.join(",", accepted);
+            System.out.println(evidence.getAreaName() + " (" + evidence.getFramesObserved() + " frames): " + items);
+            for (AreaEvidence.ClassEvidence classEvidence : evidence.ranked()) {
+                System.out.println(String.format(Locale.US, "  %s, stability %.2f -> %s", classEvidence,
+                        evidence.stability(classEvidence), evidence.isAccepted(classEvidence) ? "accepted" : "rejected"));
+            }
+        }
+    }
+
+    /**
+     * Lists frames whose above-threshold boxes collapsed in the decoder, which usually means the box units
+     * (pixels vs normalized, see --normalized-boxes) do not match the export.
+     */
+    private static void printInvalidBoxes(List<ReplayWorker.FrameResult> results) {
+        List<ReplayWorker.FrameResult> sorted = sortedByFileName(results);
+        int total = 0;
+        System.out.println("=== Collapsed boxes ===");
+        for (ReplayWorker.FrameResult r : sorted) {
+            if (r.invalidBoxes > 0) {
+                System.out.println(r.frame.file.getName() + ": " + r.invalidBoxes);
+                total += r.invalidBoxes;
+            }
+        }
+        System.out.println(total == 0 ? "None" : "Total: " + total + " (check --normalized-boxes)");
+    }
+
+    private static List<ReplayWorker.FrameResult> sortedByFileName(List<ReplayWorker.FrameResult> results) {
+        List<ReplayWorker.FrameResult> sorted = new ArrayList<>(results);
+        Collections.sort(sorted, new Comparator<ReplayWorker.FrameResult>() {
+            @Override
+            public int compare(ReplayWorker.FrameResult a, ReplayWorker.FrameResult b) {
+                return a.frame.file.getName().compareTo(b.frame.file.getName());
+            }
+        });
+        return sorted;
+    }
+
+    private static void printThroughput(List<ReplayWorker.FrameResult> results, long elapsedNanos, int threads) {
+        long calibrate = 0, crop = 0, infer = 0, post = 0;
+        int panels = 0;
+        for (ReplayWorker.FrameResult r : results) {
+            calibrate += r.calibrateNanos;
+            crop += r.cropNanos;
+            infer += r.inferNanos;
+            post += r.postprocessNanos;
+            if (r.panelFound) panels++;
+        }
+        int n = results.size();
+        System.out.println("=== Throughput ===");
+        System.out.println(String.format(Locale.US, "%d frames on %d threads in %.1f ms -> %.2f frames/s (panel found in %d)",
+                n, threads, elapsedNanos / 1e6, n / (elapsedNanos / 1e9), panels));
+        System.out.println(String.format(Locale.US, "Mean per frame: calibrate %.2f ms, crop %.2f ms, infer %.2f ms, decode+NMS %.2f ms",
+                calibrate / 1e6 / n, crop / 1e6 / n, infer / 1e6 / n, post / 1e6 / n));
+    }
+
+    private static void writeCsv(List<ReplayWorker.FrameResult> results, File out) throws IOException {
+        List<ReplayWorker.FrameResult> sorted = sortedByFileName(results);
+        PrintWriter writer = new PrintWriter(Files.newBufferedWriter(out.toPath(), StandardCharsets.UTF_8));
+        try {
+            writer.println("file,area,index,camera,panel_found,label,confidence,xmin,ymin,xmax,ymax");
+            for (ReplayWorker.FrameResult r : sorted) {
+                String prefix = r.frame.file.getName() + "," + r.frame.area + "," + r.frame.index + "," + r.frame.camera + "," + r.panelFound;
+                if (r.detections.isEmpty()) {
+                    writer.println(prefix + ",,,,,,");
+                }
+                for (ReplayWorker.Detection d : r.detections) {
+                    writer.println(String.format(Locale.US, "%s,%s,%.4f,%.4f,%.4f,%.4f,%.4f",
+                            prefix, d.label, d.confidence, d.xmin, d.ymin, d.xmax, d.ymax));
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static Config parseArgs(String[] args) throws IOException {
+        Config config = new Config();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--calibrated".equals(arg)) {
+                config.calibrated = true;
+                continue;
+            }
+            if ("--normalized-boxes".equals(arg)) {
+                config.pixelBoxes = false;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                usage("Missing value for " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--frames": config.framesDir = new File(value); break;
+                case "--model": config.modelPath = value; break;
+                case "--labels": config.labelsFile = new File(value); break;
+                case "--threshold": config.confidenceThreshold = Float.parseFloat(value); break;
+                case "--iou": config.iouThreshold = Float.parseFloat(value); break;
+                case "--input-size": config.inputSize = Integer.parseInt(value); break;
+                case "--threads": config.threads = Integer.parseInt(value); break;
+                case "--out": config.out = new File(value); break;
+                default: usage("Unknown option " + arg);
+            }
+        }
+        if (config.framesDir == null || config.modelPath == null) {
+            usage("--frames and --model are required");
+        }
+        config.labels = new ArrayList<>();
+        for (String line : Files.readAllLines(config.labelsFile.toPath(), StandardCharsets.UTF_8)) {
+            if (!line.trim().isEmpty()) {
+                config.labels.add(line.trim());
+            }
+        }
+        return config;
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage: ReplayEngine --frames DIR --model MODEL.onnx [--labels FILE] [--threshold 0.65] [--iou 0.45]"
+                + " [--input-size 480] [--threads N] [--calibrated] [--normalized-boxes] [--out results.csv]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,177 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.dnn.Dnn;
+import org.opencv.dnn.Net;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per-thread replay pipeline: calibrate, crop, infer, decode and NMS for one saved frame.
+ *
+ * Calibration, cropping, decoding and NMS are the app's own classes. Inference uses OpenCV DNN on an ONNX export
+ * of the flight model, since the TFLite Java runtime only ships for Android; the export must keep the
+ * [1, 4 + classes, slots] output layout. Not thread-safe: the engine keeps one worker per thread.
+ */
+class ReplayWorker {
+
+    static class Detection implements AreaEvidence.Detection {
+        final String label;
+        final int classId;
+        final float confidence;
+        final float xmin, ymin, xmax, ymax;
+
+        Detection(String label, int classId, float confidence, float xmin, float ymin, float xmax, float ymax) {
+            this.label = label;
+            this.classId = classId;
+            this.confidence = confidence;
+            this.xmin = xmin;
+            this.ymin = ymin;
+            this.xmax = xmax;
+            this.ymax = ymax;
+        }
+
+        @Override
+        public String getLabel() {
+            return label;
+        }
+
+        @Override
+        public int getClassId() {
+            return classId;
+        }
+
+        @Override
+        public float getConfidence() {
+            return confidence;
+        }
+
+        @Override
+        public float getBoxArea() {
+            return (xmax - xmin) * (ymax - ymin);
+        }
+    }
+
+    static class FrameResult {
+        final ReplayEngine.Frame frame;
+        final List<Detection> detections;
+        final boolean panelFound;
+        /** Above-threshold slots dropped because their box collapsed after clamping to [0, 1]. */
+        final int invalidBoxes;
+        final long calibrateNanos, cropNanos, inferNanos, postprocessNanos;
+
+        FrameResult(ReplayEngine.Frame frame, List<Detection> detections, boolean panelFound, int invalidBoxes,
+                    long calibrateNanos, long cropNanos, long inferNanos, long postprocessNanos) {
+            this.frame = frame;
+            this.detections = detections;
+            this.panelFound = panelFound;
+            this.invalidBoxes = invalidBoxes;
+            this.calibrateNanos = calibrateNanos;
+            this.cropNanos = cropNanos;
+            this.inferNanos = inferNanos;
+            this.postprocessNanos = postprocessNanos;
+        }
+    }
+
+    private final ReplayEngine.Config config;
+    private final CameraCalibrator calibrator;
+    private final Net net;
+    private final YoloOutputDecoder decoder;
+    private final NmsEngine nms;
+    private final DetectionCandidates candidates = new DetectionCandidates(1);
+    private float[] outputScratch;
+
+    ReplayWorker(ReplayEngine.Config config, CameraCalibrator calibrator) {
+        this.config = config;
+        this.calibrator = calibrator;
+        this.net = Dnn.readNetFromONNX(config.modelPath);
+        this.decoder = new YoloOutputDecoder(config.labels.size(), 1);
+        this.nms = new NmsEngine(config.maxCandidates, config.iouThreshold);
+    }
+
+    FrameResult process(ReplayEngine.Frame frame) {
+        Mat bgr = Imgcodecs.imread(frame.file.getPath(), Imgcodecs.IMREAD_COLOR);
+        Mat rgba = new Mat();
+        Mat calibrated = new Mat();
+        PanelCropper.CropResult crop = null;
+        Mat rgb = new Mat();
+        Mat blob = null;
+        Mat output = null;
+        try {
+            if (bgr.empty()) {
+                throw new IllegalArgumentException("Unreadable image: " + frame.file);
+            }
+            // Same channel layout as Utils.bitmapToMat on the robot
+            Imgproc.cvtColor(bgr, rgba, Imgproc.COLOR_BGR2RGBA);
+
+            long t0 = System.nanoTime();
+            if (frame.needsCalibration) {
+                calibrator.undistort(frame.camera, rgba, calibrated);
+            } else {
+                rgba.copyTo(calibrated);
+            }
+            long t1 = System.nanoTime();
+            crop = PanelCropper.crop(calibrated);
+            long t2 = System.nanoTime();
+
+            // RGB, bilinear resize, [0, 1] like the app's pixel packing; NCHW as the ONNX export expects
+            Imgproc.cvtColor(crop.cropped, rgb, Imgproc.COLOR_RGBA2RGB);
+            blob = Dnn.blobFromImage(rgb, 1.0 / 255.0, new Size(config.inputSize, config.inputSize),
+                    new Scalar(0, 0, 0), false, false);
+            net.setInput(blob);
+            output = net.forward();
+            long t3 = System.nanoTime();
+
+            List<Detection> detections = decode(output);
+            long t4 = System.nanoTime();
+
+            return new FrameResult(frame, detections, crop.hasQuad(), decoder.getLastInvalidBoxCount(),
+                    t1 - t0, t2 - t1, t3 - t2, t4 - t3);
+        } finally {
+            bgr.release();
+            rgba.release();
+            calibrated.release();
+            rgb.release();
+            if (crop != null) crop.release();
+            if (blob != null) blob.release();
+            if (output != null) output.release();
+        }
+    }
+
+    private List<Detection> decode(Mat output) {
+        int total = (int) output.total();
+        int numSlots = total / (4 + config.labels.size());
+        if (outputScratch == null || outputScratch.length != total) {
+            outputScratch = new float[total];
+            decoder.setNumSlots(numSlots);
+        }
+        output.reshape(1, 1).get(0, 0, outputScratch);
+        if (config.pixelBoxes) {
+            // Ultralytics ONNX exports give box centre and size in input pixels; the decoder expects [0, 1] like TFLite
+            float scale = 1.0f / config.inputSize;
+            for (int i = 0; i < 4 * numSlots; i++) {
+                outputScratch[i] *= scale;
+            }
+        }
+
+        decoder.decode(FloatBuffer.wrap(outputScratch), config.confidenceThreshold, candidates);
+        int keptCount = nms.run(candidates);
+        int[] kept = nms.getKept();
+
+        List<Detection> detections = new ArrayList<>(keptCount);
+        for (int k = 0; k < keptCount; k++) {
+            int i = kept[k];
+            int classId = candidates.classId[i];
+            String label = classId < config.labels.size() ? config.labels.get(classId) : "Unknown_Class_" + classId;
+            detections.add(new Detection(label, classId, candidates.score[i],
+                    candidates.xmin[i], candidates.ymin[i], candidates.xmax[i], candidates.ymax[i]));
+        }
+        return detections;
+    }
+}